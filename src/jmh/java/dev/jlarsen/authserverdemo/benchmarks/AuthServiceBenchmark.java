@@ -0,0 +1,50 @@
+package dev.jlarsen.authserverdemo.benchmarks;
+
+import dev.jlarsen.authserverdemo.exceptions.CodeRequestError;
+import dev.jlarsen.authserverdemo.models.CodeRequest;
+import dev.jlarsen.authserverdemo.services.AuthService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.core.Authentication;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The authorization leg of the code flow
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AuthServiceBenchmark {
+
+    private ConfigurableApplicationContext context;
+    private AuthService authService;
+    private Authentication user;
+
+    @Setup
+    public void setup() {
+        context = BenchmarkContext.start();
+        authService = context.getBean(AuthService.class);
+        user = BenchmarkContext.userAuthentication();
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public CodeRequestError verifyClientCodeRequest() {
+        return authService.verifyClientCodeRequest(codeRequest());
+    }
+
+    @Benchmark
+    public String getAuthCode() {
+        return authService.getAuthCode(codeRequest(), user);
+    }
+
+    // a new request per call, as the application would bind one from each request's parameters
+    static CodeRequest codeRequest() {
+        return new CodeRequest("code", BenchmarkContext.CLIENT_ID, "read:transactions test:scope",
+                "state", BenchmarkContext.REDIRECT_URI);
+    }
+}
@@ -0,0 +1,50 @@
+package dev.jlarsen.authserverdemo.benchmarks;
+
+import dev.jlarsen.authserverdemo.AuthServerDemoApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+import java.util.Collections;
+
+/**
+ * Boots the application against in-memory H2 and embedded Hazelcast, without a web server
+ * The sample data from AuthServerDemoApplication.loadInitialData is available to every benchmark
+ */
+final class BenchmarkContext {
+
+    static final String CLIENT_ID = "test-client";
+    static final String USER_EMAIL = "test@email.com";
+    static final String REDIRECT_URI = "http://localhost:8080/login/oauth2/code/auth-client";
+
+    private BenchmarkContext() {
+    }
+
+    /**
+     * @param properties extra application properties, e.g. key rotation settings
+     * @return running application context, to be closed in the benchmarks tear down
+     */
+    static ConfigurableApplicationContext start(String... properties) {
+        return new SpringApplicationBuilder(AuthServerDemoApplication.class)
+                .web(WebApplicationType.NONE)
+                .profiles("h2")
+                .properties("logging.level.root=WARN")
+                // keep the scheduler from rotating keys in the middle of a run
+                .properties("keys.refresh-interval-ms=86400000")
+                .properties(properties)
+                .run();
+    }
+
+    static Authentication clientAuthentication() {
+        return new UsernamePasswordAuthenticationToken(CLIENT_ID, null,
+                Collections.singletonList(new SimpleGrantedAuthority("ROLE_CLIENT")));
+    }
+
+    static Authentication userAuthentication() {
+        return new UsernamePasswordAuthenticationToken(USER_EMAIL, null,
+                Collections.singletonList(new SimpleGrantedAuthority("ROLE_USER")));
+    }
+}
@@ -0,0 +1,55 @@
+package dev.jlarsen.authserverdemo.benchmarks;
+
+import dev.jlarsen.authserverdemo.models.TokenRequest;
+import dev.jlarsen.authserverdemo.services.AuthService;
+import dev.jlarsen.authserverdemo.services.TokenService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.core.Authentication;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The token leg of the code flow, exchanging a fresh authorization code for an access and refresh token
+ * Codes are single use, so a new one is issued before each invocation (outside of the measurement)
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CodeExchangeBenchmark {
+
+    private ConfigurableApplicationContext context;
+    private AuthService authService;
+    private TokenService tokenService;
+    private Authentication user;
+    private Authentication client;
+    private TokenRequest tokenRequest;
+
+    @Setup
+    public void setup() {
+        context = BenchmarkContext.start();
+        authService = context.getBean(AuthService.class);
+        tokenService = context.getBean(TokenService.class);
+        user = BenchmarkContext.userAuthentication();
+        client = BenchmarkContext.clientAuthentication();
+    }
+
+    @Setup(Level.Invocation)
+    public void issueCode() {
+        tokenRequest = new TokenRequest();
+        tokenRequest.setGrantType("authorization_code");
+        tokenRequest.setRedirectUri(BenchmarkContext.REDIRECT_URI);
+        tokenRequest.setCode(authService.getAuthCode(AuthServiceBenchmark.codeRequest(), user));
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Map<String, Object> exchangeCode() {
+        tokenService.verifyClientTokenRequest(client, tokenRequest);
+        return tokenService.createTokenResponse(client);
+    }
+}
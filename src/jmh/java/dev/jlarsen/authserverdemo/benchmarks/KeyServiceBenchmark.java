@@ -0,0 +1,48 @@
+package dev.jlarsen.authserverdemo.benchmarks;
+
+import com.nimbusds.jose.JWSObject;
+import dev.jlarsen.authserverdemo.services.KeyService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signing a payload the size of an authorization code
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class KeyServiceBenchmark {
+
+    private ConfigurableApplicationContext context;
+    private KeyService keyService;
+    private Map<String, Object> payload;
+
+    @Setup
+    public void setup() {
+        context = BenchmarkContext.start();
+        keyService = context.getBean(KeyService.class);
+        payload = new HashMap<>();
+        payload.put("client_id", BenchmarkContext.CLIENT_ID);
+        payload.put("redirect_uri", BenchmarkContext.REDIRECT_URI);
+        payload.put("user_id", BenchmarkContext.USER_EMAIL);
+        payload.put("code_id", UUID.randomUUID().toString());
+        payload.put("expires", Instant.now().plus(3, ChronoUnit.MINUTES).toString());
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public String createJws() {
+        JWSObject jwsObject = keyService.createJws(payload);
+        return jwsObject.serialize();
+    }
+}
@@ -0,0 +1,85 @@
+package dev.jlarsen.authserverdemo.benchmarks;
+
+import com.nimbusds.jose.JWSObject;
+import com.nimbusds.jwt.JWTClaimsSet;
+import dev.jlarsen.authserverdemo.models.UserPrincipal;
+import dev.jlarsen.authserverdemo.services.KeyService;
+import dev.jlarsen.authserverdemo.services.TokenService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Access token issuance and Bearer validation
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TokenServiceBenchmark {
+
+    // number of published keys, the token being verified is signed by the oldest one
+    @Param({"1", "4", "16"})
+    int keys;
+
+    private ConfigurableApplicationContext context;
+    private TokenService tokenService;
+    private KeyService keyService;
+    private String accessToken;
+    private JWSObject jwsObject;
+
+    @Setup
+    public void setup() {
+        // rotate on every refresh and sign with new keys right away, so each refresh adds one signing key
+        context = BenchmarkContext.start(
+                "keys.retained-generations=" + keys,
+                "keys.rotation-period-minutes=0",
+                "keys.publish-ahead-minutes=0");
+        tokenService = context.getBean(TokenService.class);
+        accessToken = tokenService.createNewAccessToken(BenchmarkContext.CLIENT_ID, BenchmarkContext.USER_EMAIL);
+        keyService = context.getBean(KeyService.class);
+        for (int i = 1; i < keys; i++) {
+            keyService.refreshKeys();
+        }
+        jwsObject = tokenService.parseCode(accessToken);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public String createNewAccessToken() {
+        return tokenService.createNewAccessToken(BenchmarkContext.CLIENT_ID, BenchmarkContext.USER_EMAIL);
+    }
+
+    // the generic Nimbus pipeline createNewAccessToken used before, kept to compare allocation against
+    @Benchmark
+    public String signJwtClaimsSet() {
+        Instant issuedAt = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        JWTClaimsSet claimsSet = new JWTClaimsSet.Builder()
+                .subject(BenchmarkContext.USER_EMAIL)
+                .issuer("http://auth-server:8081/oauth2")
+                .expirationTime(Date.from(issuedAt.plusSeconds(21600)))
+                .audience("http://localhost:8080")
+                .issueTime(Date.from(issuedAt))
+                .claim("cid", BenchmarkContext.CLIENT_ID)
+                .claim("accountNo", 5000)
+                .build();
+        return keyService.signJwt(claimsSet).serialize();
+    }
+
+    @Benchmark
+    public UserPrincipal parseToken() {
+        return tokenService.parseToken(accessToken);
+    }
+
+    @Benchmark
+    public JWSObject verifySignature() {
+        tokenService.verifySignature(jwsObject);
+        return jwsObject;
+    }
+}
@@ -0,0 +1,128 @@
+package dev.jlarsen.authserverdemo.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal HTTP client for one simulated user, on plain HttpURLConnection
+ * Keeps its own cookies (the JDK's CookieHandler is JVM wide, which would mix up concurrent users)
+ * and never follows redirects, so each step of the flow can read the Location it was sent to
+ */
+final class BrowserSession {
+
+    private final String baseUrl;
+    private final Map<String, String> cookies = new LinkedHashMap<>();
+
+    BrowserSession(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    Response get(String path, String authorization) throws IOException {
+        return send("GET", path, authorization, null);
+    }
+
+    Response post(String path, String authorization, Map<String, String> form) throws IOException {
+        return send("POST", path, authorization, encode(form));
+    }
+
+    private Response send(String method, String path, String authorization, String form) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setInstanceFollowRedirects(false);
+        connection.setUseCaches(false);
+        if (!cookies.isEmpty()) {
+            connection.setRequestProperty("Cookie", cookieHeader());
+        }
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        if (form != null) {
+            byte[] body = form.getBytes(StandardCharsets.UTF_8);
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+        }
+        int status = connection.getResponseCode();
+        storeCookies(connection.getHeaderFields().get("Set-Cookie"));
+        // always read the body to the end, so the connection goes back to the keep-alive pool
+        String body = read(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+        return new Response(status, connection.getHeaderField("Location"), body);
+    }
+
+    private void storeCookies(List<String> setCookies) {
+        if (setCookies == null) {
+            return;
+        }
+        for (String setCookie : setCookies) {
+            int end = setCookie.indexOf(';');
+            String pair = end < 0 ? setCookie : setCookie.substring(0, end);
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                cookies.put(pair.substring(0, equals).trim(), pair.substring(equals + 1).trim());
+            }
+        }
+    }
+
+    private String cookieHeader() {
+        StringBuilder header = new StringBuilder();
+        for (Map.Entry<String, String> cookie : cookies.entrySet()) {
+            if (header.length() > 0) {
+                header.append("; ");
+            }
+            header.append(cookie.getKey()).append('=').append(cookie.getValue());
+        }
+        return header.toString();
+    }
+
+    static String encode(Map<String, String> form) throws IOException {
+        StringBuilder encoded = new StringBuilder();
+        for (Map.Entry<String, String> field : form.entrySet()) {
+            if (encoded.length() > 0) {
+                encoded.append('&');
+            }
+            encoded.append(URLEncoder.encode(field.getKey(), "UTF-8")).append('=')
+                    .append(URLEncoder.encode(field.getValue(), "UTF-8"));
+        }
+        return encoded.toString();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    static final class Response {
+
+        final int status;
+        final String location;
+        final String body;
+
+        Response(int status, String location, String body) {
+            this.status = status;
+            this.location = location;
+            this.body = body;
+        }
+    }
+}
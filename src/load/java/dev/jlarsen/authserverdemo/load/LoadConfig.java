@@ -0,0 +1,46 @@
+package dev.jlarsen.authserverdemo.load;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Load test settings, read from load.* system properties (./gradlew loadTest -Pload.rate=100 ...)
+ * Defaults match the sample user and client created by AuthServerDemoApplication.loadInitialData
+ */
+final class LoadConfig {
+
+    // flows in progress at once, each simulated user runs one flow after another
+    final int concurrency = Integer.getInteger("load.concurrency", 16);
+    // flows started per second across all users
+    final double rate = Double.parseDouble(System.getProperty("load.rate", "20"));
+    final int warmupSeconds = Integer.getInteger("load.warmup-seconds", 10);
+    final int durationSeconds = Integer.getInteger("load.duration-seconds", 60);
+    // empty boots the server in this JVM (h2 profile, embedded Hazelcast) on a random port
+    final String targetUrl = System.getProperty("load.base-url", "");
+    final String report = System.getProperty("load.report", "build/reports/load/report.json");
+
+    final String username = System.getProperty("load.username", "test@email.com");
+    final String password = System.getProperty("load.password", "12345678");
+    final String clientId = System.getProperty("load.client-id", "test-client");
+    final String clientSecret = System.getProperty("load.client-secret", "1fWPF19vFOdS0b88QQPCxgfpctSot078");
+    final String redirectUri = System.getProperty("load.redirect-uri",
+            "http://localhost:8080/login/oauth2/code/auth-client");
+    final String scope = System.getProperty("load.scope", "read:transactions");
+
+    // set once the server is known, including the /oauth2 context path
+    String baseUrl;
+
+    /**
+     * @return settings worth keeping next to the results, so two reports can be compared
+     */
+    Map<String, Object> toReport() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("concurrency", concurrency);
+        report.put("rate", rate);
+        report.put("warmup_seconds", warmupSeconds);
+        report.put("duration_seconds", durationSeconds);
+        report.put("base_url", baseUrl);
+        report.put("scope", scope);
+        return report;
+    }
+}
@@ -0,0 +1,112 @@
+package dev.jlarsen.authserverdemo.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.jlarsen.authserverdemo.AuthServerDemoApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load generator for the full code flow (see OAuthFlow), run with ./gradlew loadTest
+ * Flows are started on a fixed schedule (load.rate per second, spread over load.concurrency users) rather than
+ * as fast as responses come back, and latency is measured from each flow's scheduled start, so a stalled server
+ * shows up in the percentiles instead of just slowing the test down.
+ * Results go to a JSON report (load.report) that can be diffed between builds.
+ */
+public final class LoadGenerator {
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadConfig config = new LoadConfig();
+        ConfigurableApplicationContext context = null;
+        if (config.targetUrl.isEmpty()) {
+            context = startServer();
+            config.baseUrl = "http://localhost:" + context.getEnvironment().getProperty("local.server.port") +
+                    context.getEnvironment().getProperty("server.servlet.context-path", "");
+        } else {
+            config.baseUrl = config.targetUrl;
+        }
+
+        try {
+            Map<OAuthFlow.Step, StepStats> stats = run(config);
+            writeReport(config, stats);
+        } finally {
+            if (context != null) {
+                context.close();
+            }
+        }
+    }
+
+    private static ConfigurableApplicationContext startServer() {
+        return new SpringApplicationBuilder(AuthServerDemoApplication.class)
+                .profiles("h2")
+                .properties("server.port=0")
+                .properties("logging.level.root=WARN")
+                .properties("spring.jpa.show-sql=false")
+                // a single client and address would be throttled straight away
+                .properties("rate-limit.enabled=false")
+                .properties("keys.refresh-interval-ms=86400000")
+                .run();
+    }
+
+    private static Map<OAuthFlow.Step, StepStats> run(LoadConfig config) throws InterruptedException {
+        Map<OAuthFlow.Step, StepStats> stats = new EnumMap<>(OAuthFlow.Step.class);
+        for (OAuthFlow.Step step : OAuthFlow.Step.values()) {
+            stats.put(step, new StepStats());
+        }
+        OAuthFlow flow = new OAuthFlow(config);
+
+        // each user starts a flow every interval, users are offset so starts are spread evenly
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) * config.concurrency / config.rate);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(config.warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+
+        ExecutorService users = Executors.newFixedThreadPool(config.concurrency);
+        for (int user = 0; user < config.concurrency; user++) {
+            long offset = interval * user / config.concurrency;
+            users.execute(() -> {
+                for (long intended = start + offset; intended < end; intended += interval) {
+                    long wait = intended - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    flow.run(intended, intended >= measureFrom ? stats : null);
+                }
+            });
+        }
+        users.shutdown();
+        users.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return stats;
+    }
+
+    private static void writeReport(LoadConfig config, Map<OAuthFlow.Step, StepStats> stats) throws Exception {
+        Map<String, Object> steps = new LinkedHashMap<>();
+        for (Map.Entry<OAuthFlow.Step, StepStats> step : stats.entrySet()) {
+            steps.put(step.getKey().name().toLowerCase(), step.getValue().toReport());
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", Instant.now().toString());
+        report.put("config", config.toReport());
+        report.put("achieved_rate", (double) stats.get(OAuthFlow.Step.FLOW).getCount() / config.durationSeconds);
+        report.put("steps", steps);
+
+        File file = new File(config.report);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(file, report);
+        System.out.println("load report written to " + file.getAbsolutePath());
+    }
+}
@@ -0,0 +1,158 @@
+package dev.jlarsen.authserverdemo.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One user going through the whole code flow against the server, the way a browser and client app would:
+ * form login, authorize, approve, exchange the code, refresh, then call userinfo with the new access token
+ */
+final class OAuthFlow {
+
+    enum Step {
+        LOGIN, AUTHORIZE, APPROVE, TOKEN, REFRESH, USERINFO,
+        // the whole flow, from when it should have started
+        FLOW
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final LoadConfig config;
+    private final String basicAuthorization;
+
+    OAuthFlow(LoadConfig config) {
+        this.config = config;
+        this.basicAuthorization = "Basic " + Base64.getEncoder().encodeToString(
+                (config.clientId + ":" + config.clientSecret).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Runs the flow once, recording each step that completes
+     * Response time is measured from when the step should have started - for the first step that is
+     * the flow's slot in the schedule, so time spent waiting behind a slow server is not lost (coordinated omission).
+     * Service time is measured from when the request was actually sent.
+     *
+     * @param intendedStart nanoTime this flow was scheduled to start
+     * @param stats         to record into, or null during warmup
+     */
+    void run(long intendedStart, Map<Step, StepStats> stats) {
+        BrowserSession session = new BrowserSession(config.baseUrl);
+        long actualStart = System.nanoTime();
+        long stepIntended = intendedStart;
+        Step step = Step.LOGIN;
+        try {
+            Map<Step, String> results = new EnumMap<>(Step.class);
+            for (Step next : Step.values()) {
+                if (next == Step.FLOW) {
+                    break;
+                }
+                step = next;
+                long start = System.nanoTime();
+                results.put(step, execute(step, session, results));
+                long end = System.nanoTime();
+                if (stats != null) {
+                    stats.get(step).record(end - stepIntended, end - start);
+                }
+                stepIntended = end;
+            }
+            if (stats != null) {
+                stats.get(Step.FLOW).record(stepIntended - intendedStart, stepIntended - actualStart);
+            }
+        } catch (Exception e) {
+            if (stats != null) {
+                stats.get(step).error();
+                stats.get(Step.FLOW).error();
+            }
+        }
+    }
+
+    /**
+     * @return what later steps need from this one (code, tokens), or null
+     */
+    private String execute(Step step, BrowserSession session, Map<Step, String> results) throws IOException {
+        switch (step) {
+            case LOGIN: {
+                Map<String, String> form = new LinkedHashMap<>();
+                form.put("username", config.username);
+                form.put("password", config.password);
+                BrowserSession.Response response = session.post("/login", null, form);
+                expect(step, response, 302);
+                if (response.location == null || response.location.contains("error")) {
+                    throw new IOException("login failed");
+                }
+                return null;
+            }
+            case AUTHORIZE: {
+                Map<String, String> query = new LinkedHashMap<>();
+                query.put("response_type", "code");
+                query.put("client_id", config.clientId);
+                query.put("scope", config.scope);
+                query.put("state", "load");
+                query.put("redirect_uri", config.redirectUri);
+                expect(step, session.get("/authorize?" + BrowserSession.encode(query), null), 200);
+                return null;
+            }
+            case APPROVE: {
+                Map<String, String> form = new LinkedHashMap<>();
+                form.put("responseType", "code");
+                form.put("clientId", config.clientId);
+                form.put("scope", config.scope);
+                form.put("state", "load");
+                form.put("redirectUri", config.redirectUri);
+                BrowserSession.Response response = session.post("/approve", null, form);
+                expect(step, response, 302);
+                return queryParameter(response.location, "code");
+            }
+            case TOKEN: {
+                Map<String, String> form = new LinkedHashMap<>();
+                form.put("grant_type", "authorization_code");
+                form.put("code", results.get(Step.APPROVE));
+                form.put("redirect_uri", config.redirectUri);
+                BrowserSession.Response response = session.post("/token", basicAuthorization, form);
+                expect(step, response, 200);
+                return MAPPER.readTree(response.body).path("refresh_token").asText();
+            }
+            case REFRESH: {
+                Map<String, String> form = new LinkedHashMap<>();
+                form.put("grant_type", "refresh_token");
+                form.put("refresh_token", results.get(Step.TOKEN));
+                BrowserSession.Response response = session.post("/token", basicAuthorization, form);
+                expect(step, response, 200);
+                return MAPPER.readTree(response.body).path("access_token").asText();
+            }
+            case USERINFO: {
+                BrowserSession.Response response = session.get("/userinfo", "Bearer " + results.get(Step.REFRESH));
+                expect(step, response, 200);
+                JsonNode userInfo = MAPPER.readTree(response.body);
+                return userInfo.path("sub").asText();
+            }
+            default:
+                throw new IllegalArgumentException(step.name());
+        }
+    }
+
+    private static void expect(Step step, BrowserSession.Response response, int status) throws IOException {
+        if (response.status != status) {
+            throw new IOException(step + " returned " + response.status + ", expected " + status);
+        }
+    }
+
+    private static String queryParameter(String location, String name) throws IOException {
+        if (location != null) {
+            for (String pair : location.substring(location.indexOf('?') + 1).split("&")) {
+                if (pair.startsWith(name + "=")) {
+                    return URLDecoder.decode(pair.substring(name.length() + 1), "UTF-8");
+                }
+            }
+        }
+        throw new IOException("no " + name + " in redirect " + location);
+    }
+}
@@ -0,0 +1,57 @@
+package dev.jlarsen.authserverdemo.load;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms (in microseconds) and error count for one step of the flow, recorded by every worker
+ */
+final class StepStats {
+
+    private static final long HIGHEST_MICROS = TimeUnit.MINUTES.toMicros(5);
+
+    private final Histogram responseTime = new ConcurrentHistogram(HIGHEST_MICROS, 3);
+    private final Histogram serviceTime = new ConcurrentHistogram(HIGHEST_MICROS, 3);
+    private final AtomicLong errors = new AtomicLong();
+
+    void record(long responseNanos, long serviceNanos) {
+        responseTime.recordValue(Math.min(HIGHEST_MICROS, TimeUnit.NANOSECONDS.toMicros(responseNanos)));
+        serviceTime.recordValue(Math.min(HIGHEST_MICROS, TimeUnit.NANOSECONDS.toMicros(serviceNanos)));
+    }
+
+    void error() {
+        errors.incrementAndGet();
+    }
+
+    long getCount() {
+        return responseTime.getTotalCount();
+    }
+
+    /**
+     * @return counts and percentiles, ready to be written as JSON
+     */
+    Map<String, Object> toReport() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("count", responseTime.getTotalCount());
+        report.put("errors", errors.get());
+        report.put("response_time_us", percentiles(responseTime));
+        report.put("service_time_us", percentiles(serviceTime));
+        return report;
+    }
+
+    private static Map<String, Object> percentiles(Histogram histogram) {
+        Map<String, Object> percentiles = new LinkedHashMap<>();
+        percentiles.put("mean", Math.round(histogram.getMean()));
+        percentiles.put("p50", histogram.getValueAtPercentile(50));
+        percentiles.put("p90", histogram.getValueAtPercentile(90));
+        percentiles.put("p99", histogram.getValueAtPercentile(99));
+        percentiles.put("p99.9", histogram.getValueAtPercentile(99.9));
+        percentiles.put("max", histogram.getMaxValue());
+        return percentiles;
+    }
+}
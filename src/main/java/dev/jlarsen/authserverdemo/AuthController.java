@@ -1,10 +1,12 @@
 package dev.jlarsen.authserverdemo;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.jlarsen.authserverdemo.config.CryptoExecutors;
+import dev.jlarsen.authserverdemo.models.RefreshTokenRecord;
 import dev.jlarsen.authserverdemo.models.TokenRequest;
 import dev.jlarsen.authserverdemo.services.AuthService;
-import dev.jlarsen.authserverdemo.services.KeyService;
 import dev.jlarsen.authserverdemo.services.TokenService;
+import dev.jlarsen.authserverdemo.services.WellKnownDocuments;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.*;
 import org.springframework.security.access.prepost.PreAuthorize;
@@ -13,13 +15,12 @@ import org.springframework.web.bind.annotation.*;
 
 import java.security.Principal;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 public class AuthController {
 
-    @Autowired
-    KeyService keyService;
-
     @Autowired
     TokenService tokenService;
 
@@ -29,26 +30,69 @@ public class AuthController {
     @Autowired
     ObjectMapper objectMapper;
 
+    @Autowired
+    WellKnownDocuments wellKnownDocuments;
+
+    @Autowired
+    CryptoExecutors cryptoExecutors;
+
 
     /**
      * Token endpoint used by OAuth 2.0 client to request an access token
      * If request is verified an access token is issued, otherwise an error is returned to requesting client
+     * Verification and signing run on the signing pool, freeing the request thread in the meantime
      * @param params token request object containing grant_type, redirect_uri, and previously issued auth code
      * @param authentication current authenticated client (using Basic authentication)
      * @return HttpEntity containing appropriate headers and information along with access token
      */
     @PreAuthorize("hasAuthority('ROLE_CLIENT')")
     @PostMapping(value = "/token", consumes = "application/x-www-form-urlencoded")
-    public HttpEntity<?> getToken(@RequestParam Map<String, String> params, Authentication authentication) {
+    public CompletableFuture<HttpEntity<?>> getToken(@RequestParam Map<String, String> params,
+                                                     Authentication authentication) {
+        // throws RejectedExecutionException (503) right away if the signing pool is full
+        return CompletableFuture.supplyAsync(() -> issueToken(params, authentication), cryptoExecutors.getSigning());
+    }
+
+    private HttpEntity<?> issueToken(Map<String, String> params, Authentication authentication) {
+        if ("client_credentials".equals(params.get("grant_type"))) {
+            // no user involved, the client is acting on its own behalf
+            return tokenResponse(tokenService.createClientCredentialsResponse(authentication, params.get("scope")));
+        }
         if (params.get("grant_type").equals("refresh_token")) {
-            tokenService.verifyRefreshToken(params.get("refresh_token"), authentication);
-        } else {
-            TokenRequest tokenRequest = objectMapper.convertValue(params, TokenRequest.class);
-            tokenService.verifyClientTokenRequest(authentication, tokenRequest);
+            // the refresh token carries everything we need, no need to look the client up again
+            RefreshTokenRecord refreshed = tokenService.verifyRefreshToken(params.get("refresh_token"), authentication);
+            return tokenResponse(tokenService.createTokenResponse(refreshed.getClientId(), refreshed.getSubject(),
+                    refreshed.getFamilyId()));
         }
 
-        Map<String, Object> response = tokenService.createTokenResponse(authentication);
+        TokenRequest tokenRequest = objectMapper.convertValue(params, TokenRequest.class);
+        tokenService.verifyClientTokenRequest(authentication, tokenRequest);
+        return tokenResponse(tokenService.createTokenResponse(authentication));
+    }
 
+    /**
+     * Revocation endpoint (RFC 7009) used by OAuth 2.0 client to revoke an access or refresh token
+     * The response is the same whether or not there was anything to revoke
+     * @param params revocation request containing token and optional token_type_hint
+     * @param authentication current authenticated client (using Basic authentication)
+     * @return empty response
+     */
+    @PreAuthorize("hasAuthority('ROLE_CLIENT')")
+    @PostMapping(value = "/revoke", consumes = "application/x-www-form-urlencoded")
+    public ResponseEntity<?> revokeToken(@RequestParam Map<String, String> params, Authentication authentication) {
+        tokenService.revokeToken(authentication, params.get("token"), params.get("token_type_hint"));
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noStore())
+                .header(HttpHeaders.PRAGMA, "no-cache")
+                .build();
+    }
+
+    /**
+     * Wraps a token response with the headers required for token endpoint responses
+     * @param response map containing access token details
+     * @return HttpEntity to be returned to client
+     */
+    private HttpEntity<?> tokenResponse(Map<String, Object> response) {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_JSON);
         headers.setCacheControl(CacheControl.noStore());
@@ -59,34 +103,45 @@ public class AuthController {
 
     /**
      * Public endpoint used to provide configuration details to OIDC/OAuth 2.0 clients
-     * @return JSON object containing provider configuration details
+     * @param ifNoneMatch ETag of a copy the client already has, if any
+     * @return JSON object containing provider configuration details (or 304 if unchanged)
      */
     @GetMapping(value = "/.well-known/openid-configuration")
-    public Map<String, Object> provideConfig() {
-        // todo - store this data somewhere else
-        Map<String, Object> map = new HashMap<>();
-        map.put("issuer", "http://auth-server:8081/oauth2");
-        map.put("authorization_endpoint", "http://auth-server:8081/oauth2/authorize");
-        map.put("token_endpoint", "http://auth-server:8081/oauth2/token");
-        map.put("jwks_uri", "http://auth-server:8081/oauth2/.well-known/jwks.json");
-        map.put("userinfo_endpoint", "http://auth-server:8081/oauth2/userinfo");
-        map.put("response_types_supported", new ArrayList<>(Arrays.asList("code", "token")));
-        map.put("grant_types_supported", new ArrayList<>(Arrays.asList("authorization_code", "refresh_token")));
-        map.put("scopes_supported", new ArrayList<>(Arrays.asList("read:transactions", "test")));
-        map.put("claims_supported", new ArrayList<>(Arrays.asList("accountNo", "test")));
-        map.put("subject_types_supported", new ArrayList<>(Collections.singletonList("public")));
-        map.put("id_token_signing_alg_values_supported", new ArrayList<>(Arrays.asList("RS256", "ES256")));
-        map.put("token_endpoint_auth_signing_alg_values_supported", new ArrayList<>(Arrays.asList("RS256", "ES256")));
-        return map;
+    public ResponseEntity<byte[]> provideConfig(
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return documentResponse(wellKnownDocuments.getConfiguration(), ifNoneMatch);
     }
 
     /**
      * Public endpoint used to provide this servers public key set
-     * @return JSON object containing current JWKSet
+     * @param ifNoneMatch ETag of a copy the client already has, if any
+     * @return JSON object containing current JWKSet (or 304 if unchanged)
      */
     @GetMapping(value = "/.well-known/jwks.json")
-    public Map<String, Object> providePublicJwks() {
-        return keyService.getJwkSet().toJSONObject(true);
+    public ResponseEntity<byte[]> providePublicJwks(
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return documentResponse(wellKnownDocuments.getJwks(), ifNoneMatch);
+    }
+
+    /**
+     * Serves a pre-serialized document, or just 304 Not Modified if the client's copy is current
+     * @param document to be served
+     * @param ifNoneMatch ETag of a copy the client already has, if any
+     * @return response containing document bytes, ETag and Cache-Control headers
+     */
+    private ResponseEntity<byte[]> documentResponse(WellKnownDocuments.Document document, String ifNoneMatch) {
+        CacheControl cacheControl = CacheControl.maxAge(document.getMaxAgeSeconds(), TimeUnit.SECONDS).cachePublic();
+        if (document.matches(ifNoneMatch)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(document.getEtag())
+                    .cacheControl(cacheControl)
+                    .build();
+        }
+        return ResponseEntity.ok()
+                .eTag(document.getEtag())
+                .cacheControl(cacheControl)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(document.getBody());
     }
 
     /**
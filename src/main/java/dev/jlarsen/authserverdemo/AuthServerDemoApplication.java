@@ -6,16 +6,19 @@ import dev.jlarsen.authserverdemo.models.UserEntity;
 import dev.jlarsen.authserverdemo.repositories.AuthClientRepository;
 import dev.jlarsen.authserverdemo.repositories.RoleRepository;
 import dev.jlarsen.authserverdemo.repositories.UserRepository;
+import dev.jlarsen.authserverdemo.services.AuthClientRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.security.crypto.password.PasswordEncoder;
 
 import java.util.*;
 
 @SpringBootApplication
+@EnableScheduling
 public class AuthServerDemoApplication {
 
 	public static void main(String[] args) {
@@ -23,8 +26,9 @@ public class AuthServerDemoApplication {
 	}
 
 	@Bean
-	public CommandLineRunner loadInitialData(AuthClientRepository authClientRepository, RoleRepository roleRepository,
-											 UserRepository userRepository, PasswordEncoder passwordEncoder) {
+	public CommandLineRunner loadInitialData(AuthClientRepository authClientRepository, AuthClientRegistry authClientRegistry,
+											 RoleRepository roleRepository, UserRepository userRepository,
+											 PasswordEncoder passwordEncoder) {
 		return (args) -> {
 
 			if (((Collection<RoleEntity>)roleRepository.findAll()).size() == 0) {
@@ -38,7 +42,7 @@ public class AuthServerDemoApplication {
 			}
 
 			if (((Collection<AuthClient>)authClientRepository.findAll()).size() == 0) {
-				authClientRepository.save(new AuthClient(
+				authClientRegistry.save(new AuthClient(
 						"test-client",
 						"1fWPF19vFOdS0b88QQPCxgfpctSot078",
 						passwordEncoder.encode("1fWPF19vFOdS0b88QQPCxgfpctSot078"),
@@ -47,8 +51,7 @@ public class AuthServerDemoApplication {
 						new HashMap<>(Collections.singletonMap("accountNo", "5000")),
 						new ArrayList<>(Collections.singleton("code")),
 						"Test Client 1",
-						userRepository.findByEmail("test@email.com"),
-						""));
+						userRepository.findByEmail("test@email.com")));
 			}
 
 
@@ -1,8 +1,11 @@
 package dev.jlarsen.authserverdemo;
 
+import org.springframework.stereotype.Component;
+
 import java.security.SecureRandom;
 import java.util.Base64;
 
+@Component
 public class RandomStringGenerator {
 
     private static final SecureRandom secureRandom = new SecureRandom();
@@ -1,6 +1,7 @@
 package dev.jlarsen.authserverdemo;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.jlarsen.authserverdemo.config.CryptoExecutors;
 import dev.jlarsen.authserverdemo.exceptions.CodeRequestError;
 import dev.jlarsen.authserverdemo.exceptions.RedirectUriException;
 import dev.jlarsen.authserverdemo.models.AuthClient;
@@ -17,6 +18,7 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.security.Principal;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Controller
 public class ViewController {
@@ -27,6 +29,9 @@ public class ViewController {
     @Autowired
     ObjectMapper objectMapper;
 
+    @Autowired
+    CryptoExecutors cryptoExecutors;
+
     /**
      * Authorization endpoint used by OAuth 2.0 client to request an auth code
      * @param params authorization request parameters (response_type, client_id, scope, state, redirect_uri)
@@ -70,17 +75,18 @@ public class ViewController {
 
     /**
      * Endpoint used when User has approved client request and auth code will be issued
+     * The code is created (and signed) on the signing pool
      * @param codeRequest code request that was approved
      * @param principal User that approved access
      * @return redirect to client with auth code
      */
     @PreAuthorize("hasAuthority('ROLE_USER')")
     @PostMapping(value = "/approve")
-    public RedirectView approveAccess(@ModelAttribute("codeRequest") CodeRequest codeRequest,
-                                      Principal principal) {
-        return new RedirectView(codeRequest.getRedirectUri() +
+    public CompletableFuture<RedirectView> approveAccess(@ModelAttribute("codeRequest") CodeRequest codeRequest,
+                                                         Principal principal) {
+        return CompletableFuture.supplyAsync(() -> new RedirectView(codeRequest.getRedirectUri() +
                 "?state=" + codeRequest.getState() + "&code=" +
-                authService.getAuthCode(codeRequest, principal));
+                authService.getAuthCode(codeRequest, principal)), cryptoExecutors.getSigning());
     }
 
     /**
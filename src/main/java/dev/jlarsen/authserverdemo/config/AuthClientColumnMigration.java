@@ -0,0 +1,153 @@
+package dev.jlarsen.authserverdemo.config;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import java.io.*;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.util.*;
+
+/**
+ * Moves AuthClient scope, claims and grants out of the Java-serialized columns Hibernate used to write into
+ * auth_client, and into the auth_client_scope, auth_client_claim and auth_client_grant tables.
+ * Runs before AuthClientRegistry loads any clients, copies values for clients that have none in the new tables,
+ * then drops the old columns - so on later starts (and on databases created since) it finds nothing to do.
+ * Everything it copies and drops is logged, there is no way back once the columns are gone.
+ */
+@Slf4j
+@Component
+public class AuthClientColumnMigration {
+
+    private static final String[] LEGACY_COLUMNS = {"scope", "claims", "grants"};
+
+    // the only classes the old columns can hold (String is not resolved through resolveClass)
+    private static final Set<String> LEGACY_CLASSES =
+            new HashSet<>(Arrays.asList(ArrayList.class.getName(), HashMap.class.getName()));
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    // not used directly, but the new tables only exist once Hibernate has updated the schema
+    @Autowired
+    EntityManagerFactory entityManagerFactory;
+
+    @PostConstruct
+    public void migrate() {
+        List<String> legacyColumns = findLegacyColumns();
+        if (legacyColumns.isEmpty()) {
+            return;
+        }
+        // copy and drop in one transaction, so where DDL is transactional a failed drop also undoes the copy
+        // (MySQL and H2 commit at the first drop, by then everything has been copied)
+        new TransactionTemplate(transactionManager).execute(status -> {
+            // columns are only dropped after everything was copied, so a partly dropped set has nothing left to copy
+            if (legacyColumns.size() == LEGACY_COLUMNS.length) {
+                copyLegacyValues();
+            } else {
+                log.info("auth_client columns {} are left from an earlier migration, nothing to copy",
+                        legacyColumns);
+            }
+            for (String column : legacyColumns) {
+                jdbcTemplate.execute("alter table auth_client drop column " + column);
+            }
+            return null;
+        });
+        log.info("Dropped legacy auth_client columns {}", legacyColumns);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void copyLegacyValues() {
+        List<Object[]> rows = jdbcTemplate.query("select client_id, scope, claims, grants from auth_client",
+                (rs, rowNum) -> new Object[]{rs.getString("client_id"), readLegacy(rs, "scope"),
+                        readLegacy(rs, "claims"), readLegacy(rs, "grants")});
+
+        for (Object[] row : rows) {
+            String clientId = (String) row[0];
+            Integer migrated = jdbcTemplate.queryForObject("select (select count(*) from auth_client_scope " +
+                    "where client_id = ?) + (select count(*) from auth_client_grant where client_id = ?)",
+                    Integer.class, clientId, clientId);
+            if (migrated != null && migrated > 0) {
+                log.info("auth_client {} already has scope or grants in the new tables, not copied", clientId);
+                continue;
+            }
+            int scopes = 0;
+            int claims = 0;
+            int grants = 0;
+            if (row[1] != null) {
+                for (String scope : (List<String>) row[1]) {
+                    jdbcTemplate.update("insert into auth_client_scope (client_id, scope) values (?, ?)",
+                            clientId, scope);
+                    scopes++;
+                }
+            }
+            if (row[2] != null) {
+                for (Map.Entry<String, String> claim : ((Map<String, String>) row[2]).entrySet()) {
+                    jdbcTemplate.update("insert into auth_client_claim (client_id, claim, claim_value) " +
+                            "values (?, ?, ?)", clientId, claim.getKey(), claim.getValue());
+                    claims++;
+                }
+            }
+            if (row[3] != null) {
+                for (String grant : (List<String>) row[3]) {
+                    jdbcTemplate.update("insert into auth_client_grant (client_id, grant_type) values (?, ?)",
+                            clientId, grant);
+                    grants++;
+                }
+            }
+            log.info("Migrated auth_client {}: {} scopes, {} claims, {} grants", clientId, scopes, claims, grants);
+        }
+    }
+
+    private List<String> findLegacyColumns() {
+        return jdbcTemplate.execute((ConnectionCallback<List<String>>) connection -> {
+            DatabaseMetaData metaData = connection.getMetaData();
+            List<String> found = new ArrayList<>();
+            for (String column : LEGACY_COLUMNS) {
+                // MySQL reports names as created, H2 upper cases them
+                if (hasColumn(metaData, connection.getCatalog(), "auth_client", column) ||
+                        hasColumn(metaData, connection.getCatalog(), "AUTH_CLIENT", column.toUpperCase())) {
+                    found.add(column);
+                }
+            }
+            return found;
+        });
+    }
+
+    @SneakyThrows
+    private static boolean hasColumn(DatabaseMetaData metaData, String catalog, String table, String column) {
+        try (ResultSet columns = metaData.getColumns(catalog, null, table, column)) {
+            return columns.next();
+        }
+    }
+
+    @SneakyThrows
+    private static Object readLegacy(ResultSet rs, String column) {
+        byte[] bytes = rs.getBytes(column);
+        if (bytes == null) {
+            return null;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes)) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                if (!LEGACY_CLASSES.contains(desc.getName())) {
+                    throw new InvalidClassException(desc.getName(), "not expected in auth_client." + column);
+                }
+                return super.resolveClass(desc);
+            }
+        }) {
+            return in.readObject();
+        }
+    }
+}
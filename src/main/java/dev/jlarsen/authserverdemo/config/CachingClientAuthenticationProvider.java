@@ -0,0 +1,70 @@
+package dev.jlarsen.authserverdemo.config;
+
+import dev.jlarsen.authserverdemo.metrics.OAuthMetrics;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Authenticates users and clients the same as DaoAuthenticationProvider, but lets clients that recently
+ * passed the BCrypt check skip it until their ClientCredentialCache entry expires
+ * BCrypt itself runs on the bounded password pool of CryptoExecutors, a full queue (or too many request threads
+ * already waiting for it) rejects the request
+ */
+public class CachingClientAuthenticationProvider extends DaoAuthenticationProvider {
+
+    private final ClientCredentialCache credentialCache;
+    private final OAuthMetrics oauthMetrics;
+    private final CryptoExecutors cryptoExecutors;
+
+    public CachingClientAuthenticationProvider(ClientCredentialCache credentialCache, OAuthMetrics oauthMetrics,
+                                               CryptoExecutors cryptoExecutors) {
+        this.credentialCache = credentialCache;
+        this.oauthMetrics = oauthMetrics;
+        this.cryptoExecutors = cryptoExecutors;
+    }
+
+    @Override
+    protected void additionalAuthenticationChecks(UserDetails userDetails,
+                                                  UsernamePasswordAuthenticationToken authentication) {
+        // users log in rarely through the form, only cache clients (same check as MyUserDetailsService)
+        if (authentication.getCredentials() == null || userDetails.getUsername().contains("@")) {
+            checkPassword(userDetails, authentication, oauthMetrics.getUserAuthentication());
+            return;
+        }
+        String clientId = userDetails.getUsername();
+        String presentedSecret = authentication.getCredentials().toString();
+        if (credentialCache.matches(clientId, presentedSecret, userDetails.getPassword())) {
+            oauthMetrics.getClientCredentialCacheHits().increment();
+            return;
+        }
+        // throws BadCredentialsException if the secret doesn't match, so only verified credentials get cached
+        checkPassword(userDetails, authentication, oauthMetrics.getClientAuthentication());
+        credentialCache.put(clientId, presentedSecret, userDetails.getPassword());
+    }
+
+    /**
+     * Runs the BCrypt check on the password pool and waits for it
+     * Throws RejectedExecutionException straight away if the pool is saturated
+     */
+    private void checkPassword(UserDetails userDetails, UsernamePasswordAuthenticationToken authentication,
+                               Timer timer) {
+        try {
+            cryptoExecutors.runPasswordCheck(() ->
+                    timer.record(() -> super.additionalAuthenticationChecks(userDetails, authentication)));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                // BadCredentialsException when the password doesn't match
+                throw (RuntimeException) e.getCause();
+            }
+            throw new AuthenticationServiceException("password check failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AuthenticationServiceException("interrupted waiting for password check", e);
+        }
+    }
+}
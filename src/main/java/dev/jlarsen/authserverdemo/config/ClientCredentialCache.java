@@ -0,0 +1,111 @@
+package dev.jlarsen.authserverdemo.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Short lived cache of client credentials that recently passed BCrypt verification
+ * We only keep an HMAC (under a random key that never leaves this process) of client id, presented secret
+ * and the stored secret hash - changing a client's secret changes the hash, so old entries can never match again
+ */
+@Component
+public class ClientCredentialCache {
+
+    @Value("${clients.credential-cache.enabled:true}")
+    boolean enabled;
+
+    @Value("${clients.credential-cache.ttl-seconds:60}")
+    long ttlSeconds;
+
+    private final SecretKeySpec macKey;
+    private final ThreadLocal<Mac> macs;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public ClientCredentialCache() {
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        this.macKey = new SecretKeySpec(keyBytes, "HmacSHA256");
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(macKey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Checks if these exact credentials were verified within the TTL
+     * @param clientId of client authenticating
+     * @param presentedSecret secret sent by client
+     * @param storedHash BCrypt hash currently stored for client
+     * @return true if credentials match a live entry
+     */
+    public boolean matches(String clientId, String presentedSecret, String storedHash) {
+        if (!enabled) {
+            return false;
+        }
+        Entry entry = entries.get(clientId);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(clientId, entry);
+            return false;
+        }
+        return MessageDigest.isEqual(entry.mac, mac(clientId, presentedSecret, storedHash));
+    }
+
+    /**
+     * Remembers credentials that have just passed full verification
+     * @param clientId of client authenticated
+     * @param presentedSecret secret sent by client
+     * @param storedHash BCrypt hash currently stored for client
+     */
+    public void put(String clientId, String presentedSecret, String storedHash) {
+        if (!enabled) {
+            return;
+        }
+        entries.put(clientId, new Entry(mac(clientId, presentedSecret, storedHash),
+                System.currentTimeMillis() + ttlSeconds * 1000));
+    }
+
+    /**
+     * Forget any verified credentials for a client, used when its secret changes
+     * @param clientId of client to be invalidated
+     */
+    public void invalidate(String clientId) {
+        entries.remove(clientId);
+    }
+
+    private byte[] mac(String clientId, String presentedSecret, String storedHash) {
+        Mac mac = macs.get();
+        mac.update(clientId.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        mac.update(presentedSecret.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        return mac.doFinal(storedHash.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class Entry {
+
+        private final byte[] mac;
+        private final long expiresAt;
+
+        private Entry(byte[] mac, long expiresAt) {
+            this.mac = mac;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
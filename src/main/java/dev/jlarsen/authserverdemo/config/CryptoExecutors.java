@@ -0,0 +1,124 @@
+package dev.jlarsen.authserverdemo.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded thread pools for CPU heavy crypto, kept apart from Tomcat's request threads
+ * BCrypt (form login and client Basic auth) and token/code signing each get their own pool and queue,
+ * when a queue is full the work is rejected right away (and the client gets a 503) instead of piling up.
+ * Pools are not exposed as Executor beans, so Spring Boot's own task executor is left alone.
+ * Signing runs inside async handlers, so no request thread waits for it. BCrypt runs during authentication,
+ * before any handler, so the request thread does have to wait - runPasswordCheck caps how many may wait at once
+ * (crypto.password.max-waiters), the rest are rejected, which leaves the other Tomcat threads for everything else.
+ */
+@Component
+public class CryptoExecutors {
+
+    private final ThreadPoolExecutor passwordHashPool;
+    private final ThreadPoolExecutor signingPool;
+    private final ExecutorService passwordHashing;
+    private final ExecutorService signing;
+    // request threads allowed to block waiting for a password check
+    private final Semaphore passwordWaiters;
+    private final Counter passwordRejected;
+
+    public CryptoExecutors(MeterRegistry registry,
+                           @Value("${crypto.password.threads:0}") int passwordThreads,
+                           @Value("${crypto.password.queue-size:64}") int passwordQueueSize,
+                           @Value("${crypto.password.max-waiters:32}") int passwordMaxWaiters,
+                           @Value("${crypto.signing.threads:0}") int signingThreads,
+                           @Value("${crypto.signing.queue-size:256}") int signingQueueSize) {
+        passwordHashPool = createPool("password", passwordThreads, passwordQueueSize, registry);
+        signingPool = createPool("signing", signingThreads, signingQueueSize, registry);
+        // reports pool size, active threads, queued and remaining queue capacity, plus task timings
+        passwordHashing = ExecutorServiceMetrics.monitor(registry, passwordHashPool, "crypto.password");
+        signing = ExecutorServiceMetrics.monitor(registry, signingPool, "crypto.signing");
+        passwordWaiters = new Semaphore(Math.max(1, passwordMaxWaiters));
+        passwordRejected = rejectedCounter("password", registry);
+    }
+
+    /**
+     * Runs a password check on the password pool, blocking the calling request thread until it's done
+     * Rejected straight away if max-waiters threads are already waiting, or if the pool's queue is full.
+     * @param check BCrypt check to run
+     * @throws RejectedExecutionException if the check can't be run now
+     * @throws ExecutionException with whatever the check threw (BadCredentialsException for a wrong password)
+     * @throws InterruptedException if interrupted while waiting, the check is cancelled
+     */
+    public void runPasswordCheck(Runnable check) throws ExecutionException, InterruptedException {
+        if (!passwordWaiters.tryAcquire()) {
+            passwordRejected.increment();
+            throw new RejectedExecutionException("too many requests waiting for the crypto password pool");
+        }
+        try {
+            Future<?> future = passwordHashing.submit(check);
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                throw e;
+            }
+        } finally {
+            passwordWaiters.release();
+        }
+    }
+
+    /**
+     * @return pool used for BCrypt password and client secret checks
+     */
+    public ExecutorService getPasswordHashing() {
+        return passwordHashing;
+    }
+
+    /**
+     * @return pool used for token and code issuance
+     */
+    public ExecutorService getSigning() {
+        return signing;
+    }
+
+    private static Counter rejectedCounter(String pool, MeterRegistry registry) {
+        return Counter.builder("oauth.crypto.rejected")
+                .tag("pool", pool)
+                .description("crypto tasks rejected because the pool (or its waiters) was full").register(registry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        passwordHashPool.shutdown();
+        signingPool.shutdown();
+    }
+
+    /**
+     * Creates a fixed size pool with a bounded queue that rejects (and counts) work once the queue is full
+     * @param name of pool, used for thread names and metric tags
+     * @param threads pool size, 0 for one per available processor
+     * @param queueSize number of tasks allowed to wait for a thread
+     * @param registry to register rejection counter with
+     * @return ThreadPoolExecutor
+     */
+    private static ThreadPoolExecutor createPool(String name, int threads, int queueSize, MeterRegistry registry) {
+        int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        Counter rejected = rejectedCounter(name, registry);
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "crypto-" + name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        RejectedExecutionHandler abort = (runnable, executor) -> {
+            rejected.increment();
+            throw new RejectedExecutionException("crypto " + name + " pool is saturated");
+        };
+        return new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), threadFactory, abort);
+    }
+}
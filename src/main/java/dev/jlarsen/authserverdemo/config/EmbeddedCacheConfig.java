@@ -1,23 +1,100 @@
 package dev.jlarsen.authserverdemo.config;
 
-import com.hazelcast.config.Config;
-import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.*;
+import com.hazelcast.core.HazelcastInstance;
+import dev.jlarsen.authserverdemo.metrics.CodesMapMetrics;
+import dev.jlarsen.authserverdemo.models.ModelDataSerializableFactory;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.annotation.EnableCaching;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.List;
+import java.util.stream.Collectors;
+
 @Configuration
 @EnableCaching
 class EmbeddedCacheConfig {
 
+    @Value("${hazelcast.cluster-name:auth-server}")
+    String clusterName;
+
+    @Value("${hazelcast.port:5701}")
+    int port;
+
+    // host[:port] of the other auth server nodes, empty for a standalone node
+    @Value("${hazelcast.members:}")
+    List<String> members;
+
+    @Value("${hazelcast.backup-count:1}")
+    int backupCount;
+
+    @Value("${hazelcast.async-backup-count:0}")
+    int asyncBackupCount;
+
+    @Value("${hazelcast.near-cache.maps:refresh-token-families}")
+    List<String> nearCacheMaps;
+
     @Bean
     Config config() {
         Config config = new Config();
+        config.setClusterName(clusterName);
+
+        // members are listed explicitly, nodes never find each other by multicast
+        NetworkConfig network = config.getNetworkConfig();
+        network.setPort(port).setPortAutoIncrement(true);
+        JoinConfig join = network.getJoin();
+        join.getMulticastConfig().setEnabled(false);
+        List<String> memberList = members.stream().map(String::trim).filter(member -> !member.isEmpty())
+                .collect(Collectors.toList());
+        join.getTcpIpConfig().setEnabled(!memberList.isEmpty()).setMembers(memberList);
+
+        // map values are written field by field, see ModelDataSerializableFactory
+        config.getSerializationConfig().addDataSerializableFactory(ModelDataSerializableFactory.FACTORY_ID,
+                new ModelDataSerializableFactory());
+
+        // near cached maps are read on every request but rarely written, send each invalidation right away
+        // (instead of in batches) so a revoked family can't be used on another node for seconds after
+        config.setProperty("hazelcast.map.invalidation.batch.enabled", "false");
+
         // we only cache auth codes for 3 minutes (until they expire)
-        MapConfig mapConfig = new MapConfig();
-        mapConfig.setTimeToLiveSeconds(180);
-        config.getMapConfigs().put("codes", mapConfig);
+        MapConfig codes = mapConfig("codes");
+        codes.setTimeToLiveSeconds(180);
+        config.addMapConfig(codes);
+        // refresh token maps (see RefreshTokenStore) set a TTL on each entry, so they only need backups
+        config.addMapConfig(mapConfig("refresh-tokens"));
+        config.addMapConfig(mapConfig("refresh-token-families"));
+        // revoked access tokens (see RevokedTokenStore) also expire per entry
+        config.addMapConfig(mapConfig("revoked-tokens"));
+        // current key generations (see KeyService), never expires - the database is only read if it's empty
+        config.addMapConfig(mapConfig("key-generations"));
+        // scope name -> id (see ScopeRegistry), only ever grows
+        config.addMapConfig(mapConfig("scope-ids"));
 
         return config;
     }
-}
\ No newline at end of file
+
+    /**
+     * Map config with our backup counts, and a near cache if the map is listed in hazelcast.near-cache.maps
+     * @param name of map
+     * @return MapConfig
+     */
+    private MapConfig mapConfig(String name) {
+        MapConfig mapConfig = new MapConfig(name)
+                .setBackupCount(backupCount)
+                .setAsyncBackupCount(asyncBackupCount);
+        if (nearCacheMaps.contains(name)) {
+            mapConfig.setNearCacheConfig(new NearCacheConfig(name)
+                    .setInMemoryFormat(InMemoryFormat.OBJECT)
+                    .setInvalidateOnChange(true)
+                    .setCacheLocalEntries(true));
+        }
+        return mapConfig;
+    }
+
+    @Bean
+    MeterBinder codesMapMetrics(HazelcastInstance hazelcastInstance) {
+        return new CodesMapMetrics(hazelcastInstance);
+    }
+}
@@ -0,0 +1,79 @@
+package dev.jlarsen.authserverdemo.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.jlarsen.authserverdemo.exceptions.TokenRequestError;
+import lombok.SneakyThrows;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Rate limits /token and /authorize per remote address, and /token per client on each address, before any
+ * authentication happens, so a client hammering us is turned away without touching the database, BCrypt or signing
+ * The client_id of /authorize is public and shared by all of a client's users, so it never picks a bucket there.
+ * Behind a proxy the remote address is the one the proxy forwarded, see server.forward-headers-strategy.
+ */
+public class RateLimitFilter extends OncePerRequestFilter {
+
+    private static final String BASIC_PREFIX = "Basic ";
+    // Basic credentials longer than this can't be any client of ours, don't bother decoding them
+    private static final int MAX_BASIC_LENGTH = 512;
+
+    private final RateLimiter rateLimiter;
+    private final byte[] body;
+
+    @SneakyThrows
+    public RateLimitFilter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        this.body = new ObjectMapper().writeValueAsBytes(TokenRequestError.TEMPORARILY_UNAVAILABLE);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getServletPath();
+        return !"/token".equals(path) && !"/authorize".equals(path);
+    }
+
+    @SneakyThrows
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                    FilterChain filterChain) {
+        String clientId = "/token".equals(request.getServletPath()) ? clientId(request) : null;
+        if (rateLimiter.tryAcquire(clientId, request.getRemoteAddr())) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /**
+     * @return client id from Basic credentials or the client_id parameter, not yet authenticated - it only picks
+     * the bucket
+     */
+    private String clientId(HttpServletRequest request) {
+        String authHeader = request.getHeader(HttpHeaders.AUTHORIZATION);
+        if (authHeader != null && authHeader.startsWith(BASIC_PREFIX) && authHeader.length() <= MAX_BASIC_LENGTH) {
+            try {
+                String credentials = new String(Base64.getDecoder().decode(
+                        authHeader.substring(BASIC_PREFIX.length()).trim()), StandardCharsets.UTF_8);
+                int colon = credentials.indexOf(':');
+                return colon < 0 ? credentials : credentials.substring(0, colon);
+            } catch (IllegalArgumentException e) {
+                // not valid base64, authentication will reject it
+                return null;
+            }
+        }
+        return request.getParameter("client_id");
+    }
+}
@@ -0,0 +1,144 @@
+package dev.jlarsen.authserverdemo.config;
+
+import com.hazelcast.cluster.MembershipEvent;
+import com.hazelcast.cluster.MembershipListener;
+import com.hazelcast.core.HazelcastInstance;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token bucket rate limits per remote address and per client id on each address, used by RateLimitFilter
+ * A client's bucket is keyed on its address too, so nobody can use up the quota of a client whose id they know,
+ * and a client's requests from many addresses aren't throttled together.
+ * Buckets live in fixed arrays of stripes, a key hashes to a stripe and every update is a single CAS,
+ * so there are no locks and no per-key allocation (a flood of new addresses can't grow memory).
+ * Keys sharing a stripe share its bucket, with enough stripes that is rare and only ever stricter.
+ * In cluster mode each node enforces its share of the rate (rate / number of members), which keeps the
+ * cluster wide rate about right behind a load balancer without any calls between nodes.
+ * Behind a load balancer the address must be the client's, not the balancer's - that needs
+ * server.forward-headers-strategy=native and the balancer listed in server.tomcat.remoteip.internal-proxies,
+ * otherwise every request shares the balancer's bucket.
+ */
+@Component
+public class RateLimiter {
+
+    private final boolean enabled;
+    private final Limit clientLimit;
+    private final Limit addressLimit;
+    private final Counter clientRejections;
+    private final Counter addressRejections;
+    private final long startNanos = System.nanoTime();
+
+    // number of nodes sharing the quota, always 1 unless cluster mode is on
+    private volatile int members = 1;
+
+    public RateLimiter(MeterRegistry registry, HazelcastInstance hazelcastInstance,
+                       @Value("${rate-limit.enabled:true}") boolean enabled,
+                       @Value("${rate-limit.stripes:65536}") int stripes,
+                       @Value("${rate-limit.client.requests-per-second:10}") double clientRate,
+                       @Value("${rate-limit.client.burst:20}") int clientBurst,
+                       @Value("${rate-limit.address.requests-per-second:20}") double addressRate,
+                       @Value("${rate-limit.address.burst:40}") int addressBurst,
+                       @Value("${rate-limit.cluster-mode:false}") boolean clusterMode) {
+        this.enabled = enabled;
+        this.clientLimit = new Limit(stripes, clientRate, clientBurst);
+        this.addressLimit = new Limit(stripes, addressRate, addressBurst);
+        this.clientRejections = Counter.builder("oauth.ratelimit.rejected").tag("limit", "client")
+                .description("requests rejected by the per client rate limit").register(registry);
+        this.addressRejections = Counter.builder("oauth.ratelimit.rejected").tag("limit", "address")
+                .description("requests rejected by the per address rate limit").register(registry);
+        if (clusterMode) {
+            hazelcastInstance.getCluster().addMembershipListener(new MembershipListener() {
+                @Override
+                public void memberAdded(MembershipEvent event) {
+                    members = event.getMembers().size();
+                }
+
+                @Override
+                public void memberRemoved(MembershipEvent event) {
+                    members = event.getMembers().size();
+                }
+            });
+            members = hazelcastInstance.getCluster().getMembers().size();
+        }
+    }
+
+    /**
+     * Takes a token from the address's bucket, and the client's bucket on that address
+     * @param clientId of client making the request, or null if unknown (or not limited per client)
+     * @param address  remote address of the request
+     * @return true if the request may proceed
+     */
+    public boolean tryAcquire(String clientId, String address) {
+        if (!enabled) {
+            return true;
+        }
+        long now = System.nanoTime() - startNanos;
+        int share = Math.max(1, members);
+        if (!addressLimit.tryAcquire(address, now, share)) {
+            addressRejections.increment();
+            return false;
+        }
+        if (clientId != null && !clientLimit.tryAcquire(31 * clientId.hashCode() + address.hashCode(), now, share)) {
+            clientRejections.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Striped token buckets, each stripe keeps the time its bucket will be full again (GCRA) in one long
+     */
+    static final class Limit {
+
+        private final AtomicLongArray stripes;
+        private final int mask;
+        // time to earn one token, and how far ahead of now a bucket may be before it's empty
+        private final long intervalNanos;
+        private final int burst;
+
+        Limit(int stripes, double ratePerSecond, int burst) {
+            int size = Integer.highestOneBit(Math.max(2, stripes - 1)) << 1;
+            this.stripes = new AtomicLongArray(size);
+            this.mask = size - 1;
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+            this.burst = Math.max(1, burst);
+        }
+
+        boolean tryAcquire(String key, long now, int share) {
+            return tryAcquire(key.hashCode(), now, share);
+        }
+
+        /**
+         * @param hash of the key, for keys made of more than one string without joining them
+         */
+        boolean tryAcquire(int hash, long now, int share) {
+            int index = spread(hash) & mask;
+            // each node only gets its share of the rate and burst
+            long interval = intervalNanos * share;
+            long tolerance = interval * (Math.max(1, burst / share) - 1);
+            while (true) {
+                long full = stripes.get(index);
+                long start = Math.max(full, now);
+                if (start - now > tolerance) {
+                    return false;
+                }
+                if (stripes.compareAndSet(index, full, start + interval)) {
+                    return true;
+                }
+            }
+        }
+
+        private static int spread(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            return h;
+        }
+    }
+}
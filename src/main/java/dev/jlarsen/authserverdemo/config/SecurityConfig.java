@@ -1,5 +1,6 @@
 package dev.jlarsen.authserverdemo.config;
 
+import dev.jlarsen.authserverdemo.metrics.OAuthMetrics;
 import dev.jlarsen.authserverdemo.services.TokenService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
@@ -12,6 +13,7 @@ import org.springframework.security.config.annotation.web.configuration.WebSecur
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
+import org.springframework.security.web.authentication.logout.LogoutFilter;
 import org.springframework.security.web.authentication.www.BasicAuthenticationFilter;
 
 @Configuration
@@ -24,6 +26,9 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
     @Autowired
     TokenService tokenService;
 
+    @Autowired
+    RateLimiter rateLimiter;
+
     @Override
     protected void configure(HttpSecurity http) throws Exception {
         http
@@ -36,16 +41,31 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter {
                 .httpBasic()
                 .and()
                 .addFilterBefore(new TokenAuthenticationFilter(tokenService),
-                        UsernamePasswordAuthenticationFilter.class);
+                        UsernamePasswordAuthenticationFilter.class)
+                .addFilterBefore(new ServiceUnavailableFilter(), LogoutFilter.class)
+                .addFilterAfter(new RateLimitFilter(rateLimiter), LogoutFilter.class);
     }
 
 
     @Autowired
     MyUserDetailsService myUserDetailsService;
 
+    @Autowired
+    ClientCredentialCache clientCredentialCache;
+
+    @Autowired
+    OAuthMetrics oauthMetrics;
+
+    @Autowired
+    CryptoExecutors cryptoExecutors;
+
     @Autowired
     public void configureGlobal(AuthenticationManagerBuilder auth) throws Exception {
-        auth.userDetailsService(myUserDetailsService);
+        CachingClientAuthenticationProvider provider = new CachingClientAuthenticationProvider(clientCredentialCache,
+                oauthMetrics, cryptoExecutors);
+        provider.setUserDetailsService(myUserDetailsService);
+        provider.setPasswordEncoder(encoder());
+        auth.authenticationProvider(provider);
     }
 
     @Bean
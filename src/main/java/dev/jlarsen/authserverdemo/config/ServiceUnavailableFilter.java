@@ -0,0 +1,48 @@
+package dev.jlarsen.authserverdemo.config;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.jlarsen.authserverdemo.exceptions.TokenRequestError;
+import lombok.SneakyThrows;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sits in front of the authentication filters, turning crypto work rejected by a full CryptoExecutors queue
+ * (BCrypt during form login or Basic auth) into a quick 503 rather than a 500 error page
+ * Rejections inside controllers are handled by TokenExceptionHandler
+ */
+public class ServiceUnavailableFilter extends OncePerRequestFilter {
+
+    private final byte[] body;
+
+    @SneakyThrows
+    public ServiceUnavailableFilter() {
+        body = new ObjectMapper().writeValueAsBytes(TokenRequestError.TEMPORARILY_UNAVAILABLE);
+    }
+
+    @SneakyThrows
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                    FilterChain filterChain) {
+        try {
+            filterChain.doFilter(request, response);
+        } catch (RejectedExecutionException e) {
+            if (response.isCommitted()) {
+                throw e;
+            }
+            response.reset();
+            response.setStatus(HttpStatus.SERVICE_UNAVAILABLE.value());
+            response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.setContentLength(body.length);
+            response.getOutputStream().write(body);
+        }
+    }
+}
@@ -1,20 +1,15 @@
 package dev.jlarsen.authserverdemo.config;
 
-import dev.jlarsen.authserverdemo.models.UserPrincipal;
+import dev.jlarsen.authserverdemo.models.VerifiedToken;
 import dev.jlarsen.authserverdemo.services.TokenService;
 import lombok.SneakyThrows;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
-import org.springframework.security.core.GrantedAuthority;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import javax.servlet.FilterChain;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 
 /**
  * Inspects incoming requests for Authorization headers
@@ -22,6 +17,8 @@ import java.util.List;
  */
 public class TokenAuthenticationFilter extends OncePerRequestFilter {
 
+    private static final String BEARER_PREFIX = "Bearer ";
+
     private final TokenService tokenService;
 
     public TokenAuthenticationFilter(TokenService tokenService) {
@@ -35,21 +32,20 @@ public class TokenAuthenticationFilter extends OncePerRequestFilter {
 
         String authHeader = request.getHeader("Authorization");
 
-        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
+        if (authHeader == null || !authHeader.startsWith(BEARER_PREFIX)) {
             filterChain.doFilter(request, response);
             return;
         }
 
-        String authToken = authHeader.replace("Bearer ", "");
+        String authToken = authHeader.substring(BEARER_PREFIX.length());
         UsernamePasswordAuthenticationToken token = createToken(authToken);
         SecurityContextHolder.getContext().setAuthentication(token);
         filterChain.doFilter(request, response);
     }
 
     private UsernamePasswordAuthenticationToken createToken(String authToken) throws Exception {
-        UserPrincipal userPrincipal = tokenService.parseToken(authToken);
-        List<GrantedAuthority> authorities =
-                new ArrayList<>(Collections.singletonList(new SimpleGrantedAuthority("ROLE_CLIENT")));
-        return new UsernamePasswordAuthenticationToken(userPrincipal, null, authorities);
+        VerifiedToken verifiedToken = tokenService.verifyToken(authToken);
+        return new UsernamePasswordAuthenticationToken(verifiedToken.getPrincipal(), null,
+                verifiedToken.getAuthorities());
     }
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package dev.jlarsen.authserverdemo.exceptions;
 
+import io.micrometer.core.instrument.Metrics;
 import org.springframework.http.HttpStatus;
 
 public class TokenException extends RuntimeException {
@@ -12,9 +13,13 @@ public class TokenException extends RuntimeException {
         this.error = error;
         if (error.name().equals("INVALID_CLIENT")) {
             httpStatus = HttpStatus.UNAUTHORIZED;
+        } else if (error.name().equals("TEMPORARILY_UNAVAILABLE")) {
+            httpStatus = HttpStatus.SERVICE_UNAVAILABLE;
         } else {
             httpStatus = HttpStatus.BAD_REQUEST;
         }
+        // Spring Boot adds its registry to the global one, so this shows up with the rest of our metrics
+        Metrics.counter("oauth.token.errors", "error", error.getError()).increment();
     }
 
     public TokenRequestError getError() {
@@ -2,11 +2,14 @@ package dev.jlarsen.authserverdemo.exceptions;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
 
+import java.util.concurrent.RejectedExecutionException;
+
 @RestControllerAdvice
 public class TokenExceptionHandler {
 
@@ -16,4 +19,16 @@ public class TokenExceptionHandler {
         return ResponseEntity.status(exception.getHttpStatus())
                 .body(new ObjectMapper().writeValueAsString(exception.getError()));
     }
+
+    /**
+     * Crypto work was turned away because its pool queue is full, ask the client to retry shortly
+     */
+    @ResponseBody
+    @ExceptionHandler(value = RejectedExecutionException.class)
+    public ResponseEntity<?> handleRejection(RejectedExecutionException exception) throws JsonProcessingException {
+        TokenException tokenException = new TokenException(TokenRequestError.TEMPORARILY_UNAVAILABLE);
+        return ResponseEntity.status(tokenException.getHttpStatus())
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .body(new ObjectMapper().writeValueAsString(tokenException.getError()));
+    }
 }
\ No newline at end of file
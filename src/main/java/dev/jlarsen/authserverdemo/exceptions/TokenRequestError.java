@@ -37,6 +37,10 @@ public enum TokenRequestError {
     SERVER_ERROR("server_error",
             "the server reported a 500 Internal Server Error"),
 
+    TEMPORARILY_UNAVAILABLE("temporarily_unavailable",
+            "the server is too busy to handle the request right now, try again shortly"),
+    // The server is overloaded (our crypto pools are full), sent with a 503 response and Retry-After.
+
     NONE("none", "everything looks good, proceed");
 
     private final String error;
@@ -0,0 +1,60 @@
+package dev.jlarsen.authserverdemo.metrics;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import com.hazelcast.map.listener.EntryEvictedListener;
+import com.hazelcast.map.listener.EntryExpiredListener;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Size, hits and evictions of the Hazelcast map holding our authorization codes
+ */
+public class CodesMapMetrics implements MeterBinder {
+
+    private final HazelcastInstance hazelcastInstance;
+
+    public CodesMapMetrics(HazelcastInstance hazelcastInstance) {
+        this.hazelcastInstance = hazelcastInstance;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        IMap<Object, Object> codes = hazelcastInstance.getMap("codes");
+        Gauge.builder("oauth.codes.size", codes, map -> map.getLocalMapStats().getOwnedEntryCount())
+                .description("authorization codes held by this member").register(registry);
+        FunctionCounter.builder("oauth.codes.hits", codes, map -> map.getLocalMapStats().getHits())
+                .description("reads of authorization codes held by this member").register(registry);
+        Counter evicted = Counter.builder("oauth.codes.evictions").tag("cause", "evicted")
+                .description("authorization codes removed before use").register(registry);
+        Counter expired = Counter.builder("oauth.codes.evictions").tag("cause", "expired")
+                .description("authorization codes removed before use").register(registry);
+        codes.addLocalEntryListener(new RemovalListener(evicted, expired));
+    }
+
+    private static class RemovalListener implements EntryEvictedListener<Object, Object>,
+            EntryExpiredListener<Object, Object> {
+
+        private final Counter evicted;
+        private final Counter expired;
+
+        private RemovalListener(Counter evicted, Counter expired) {
+            this.evicted = evicted;
+            this.expired = expired;
+        }
+
+        @Override
+        public void entryEvicted(EntryEvent<Object, Object> event) {
+            evicted.increment();
+        }
+
+        @Override
+        public void entryExpired(EntryEvent<Object, Object> event) {
+            expired.increment();
+        }
+    }
+}
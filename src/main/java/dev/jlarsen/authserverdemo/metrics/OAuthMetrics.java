@@ -0,0 +1,109 @@
+package dev.jlarsen.authserverdemo.metrics;
+
+import dev.jlarsen.authserverdemo.exceptions.CodeRequestError;
+import dev.jlarsen.authserverdemo.services.VerifiedTokenCache;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timers and counters for the OAuth hot paths, registered once so recording is just an update
+ * Exposed through the actuator metrics and prometheus endpoints
+ */
+@Component
+public class OAuthMetrics {
+
+    private final Timer tokenIssue;
+    private final Timer tokenParse;
+    private final Timer tokenVerify;
+    private final Counter jwkSetRequests;
+    private final Counter keyRotations;
+    private final Timer keyRotation;
+    private final Timer clientAuthentication;
+    private final Timer userAuthentication;
+    private final Counter clientCredentialCacheHits;
+    private final Map<CodeRequestError, Timer> codeRequests = new EnumMap<>(CodeRequestError.class);
+
+    public OAuthMetrics(MeterRegistry registry, VerifiedTokenCache verifiedTokenCache) {
+        tokenIssue = Timer.builder("oauth.token.issue")
+                .description("time to create and sign an access token").register(registry);
+        tokenParse = Timer.builder("oauth.token.parse")
+                .description("time to parse and verify a Bearer access token").register(registry);
+        tokenVerify = Timer.builder("oauth.token.verify")
+                .description("time to verify a JWS signature").register(registry);
+        jwkSetRequests = Counter.builder("oauth.keys.jwkset.requests")
+                .description("JWKSet lookups, always served from the current key ring").register(registry);
+        keyRotations = Counter.builder("oauth.keys.rotations")
+                .description("new key generations created").register(registry);
+        keyRotation = Timer.builder("oauth.keys.rotation")
+                .description("time to create and store a new key generation").register(registry);
+        clientAuthentication = Timer.builder("oauth.authentication.bcrypt")
+                .tag("principal", "client")
+                .description("time spent checking secrets with BCrypt").register(registry);
+        userAuthentication = Timer.builder("oauth.authentication.bcrypt")
+                .tag("principal", "user")
+                .description("time spent checking passwords with BCrypt").register(registry);
+        clientCredentialCacheHits = Counter.builder("oauth.authentication.cache.hits")
+                .description("client authentications that skipped BCrypt").register(registry);
+        for (CodeRequestError error : CodeRequestError.values()) {
+            codeRequests.put(error, Timer.builder("oauth.code.request.verify")
+                    .tag("outcome", error.getError())
+                    .description("time to verify an authorization code request").register(registry));
+        }
+        FunctionCounter.builder("oauth.token.cache", verifiedTokenCache, VerifiedTokenCache::getHits)
+                .tag("result", "hit").description("verified token cache lookups").register(registry);
+        FunctionCounter.builder("oauth.token.cache", verifiedTokenCache, VerifiedTokenCache::getMisses)
+                .tag("result", "miss").description("verified token cache lookups").register(registry);
+    }
+
+    public Timer getTokenIssue() {
+        return tokenIssue;
+    }
+
+    public Timer getTokenParse() {
+        return tokenParse;
+    }
+
+    public Timer getTokenVerify() {
+        return tokenVerify;
+    }
+
+    public Counter getJwkSetRequests() {
+        return jwkSetRequests;
+    }
+
+    public Counter getKeyRotations() {
+        return keyRotations;
+    }
+
+    public Timer getKeyRotation() {
+        return keyRotation;
+    }
+
+    public Timer getClientAuthentication() {
+        return clientAuthentication;
+    }
+
+    public Timer getUserAuthentication() {
+        return userAuthentication;
+    }
+
+    public Counter getClientCredentialCacheHits() {
+        return clientCredentialCacheHits;
+    }
+
+    /**
+     * Records how long an authorization code request took to verify, tagged by its outcome
+     * @param error outcome of verification
+     * @param nanos time taken
+     */
+    public void recordCodeRequest(CodeRequestError error, long nanos) {
+        codeRequests.get(error).record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -4,10 +4,12 @@ import com.fasterxml.jackson.annotation.JsonBackReference;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
+import org.hibernate.annotations.Fetch;
+import org.hibernate.annotations.FetchMode;
 
 import javax.persistence.*;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 @Data
 @Entity
@@ -20,9 +22,26 @@ public class AuthClient {
     private String clientSecret;
     @JsonProperty("redirect_uri")
     private String redirectUri;
-    private ArrayList<String> scope;
-    private HashMap<String, String> claims;
-    private ArrayList<String> grants;
+    // kept in their own tables (one row per value) rather than as serialized blobs, so they load without
+    // ObjectInputStream and can be queried, see AuthClientRepository and AuthClientColumnMigration.
+    // loaded eagerly since clients are held detached by AuthClientRegistry, each with one select for all clients
+    @ElementCollection(fetch = FetchType.EAGER)
+    @Fetch(FetchMode.SUBSELECT)
+    @CollectionTable(name = "auth_client_scope", joinColumns = @JoinColumn(name = "client_id"),
+            indexes = @Index(name = "idx_auth_client_scope_scope", columnList = "scope"))
+    @Column(name = "scope", nullable = false)
+    private List<String> scope;
+    @ElementCollection(fetch = FetchType.EAGER)
+    @Fetch(FetchMode.SUBSELECT)
+    @CollectionTable(name = "auth_client_claim", joinColumns = @JoinColumn(name = "client_id"))
+    @MapKeyColumn(name = "claim")
+    @Column(name = "claim_value")
+    private Map<String, String> claims;
+    @ElementCollection(fetch = FetchType.EAGER)
+    @Fetch(FetchMode.SUBSELECT)
+    @CollectionTable(name = "auth_client_grant", joinColumns = @JoinColumn(name = "client_id"))
+    @Column(name = "grant_type", nullable = false)
+    private List<String> grants;
     @JsonIgnore
     private String name;
     // todo - find a way around this besides multiple UserDetailsServices?
@@ -39,10 +58,8 @@ public class AuthClient {
     @JoinColumn(name = "user_id")
     private UserEntity user;
 
-    private String refreshToken;
-
-    public AuthClient(String clientId, String plainSecret, String clientSecret, String redirectUri, ArrayList<String> scope,
-                      HashMap<String, String> claims, ArrayList<String> grants, String name, UserEntity user, String refreshToken) {
+    public AuthClient(String clientId, String plainSecret, String clientSecret, String redirectUri, List<String> scope,
+                      Map<String, String> claims, List<String> grants, String name, UserEntity user) {
         this.clientId = clientId;
         this.plainSecret = plainSecret;
         this.clientSecret = clientSecret;
@@ -52,7 +69,6 @@ public class AuthClient {
         this.grants = grants;
         this.name = name;
         this.user = user;
-        this.refreshToken = refreshToken;
     }
 
     public AuthClient() {
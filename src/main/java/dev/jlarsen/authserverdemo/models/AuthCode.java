@@ -0,0 +1,56 @@
+package dev.jlarsen.authserverdemo.models;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+import lombok.Data;
+
+import java.io.IOException;
+
+/**
+ * An issued authorization code waiting to be exchanged, stored under its code_id
+ */
+@Data
+public class AuthCode implements IdentifiedDataSerializable {
+
+    private String clientId;
+    private String redirectUri;
+    private String userId;
+    private long expiresAt;
+
+    public AuthCode(String clientId, String redirectUri, String userId, long expiresAt) {
+        this.clientId = clientId;
+        this.redirectUri = redirectUri;
+        this.userId = userId;
+        this.expiresAt = expiresAt;
+    }
+
+    public AuthCode() {
+    }
+
+    @Override
+    public int getFactoryId() {
+        return ModelDataSerializableFactory.FACTORY_ID;
+    }
+
+    @Override
+    public int getClassId() {
+        return ModelDataSerializableFactory.AUTH_CODE;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeUTF(clientId);
+        out.writeUTF(redirectUri);
+        out.writeUTF(userId);
+        out.writeLong(expiresAt);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        clientId = in.readUTF();
+        redirectUri = in.readUTF();
+        userId = in.readUTF();
+        expiresAt = in.readLong();
+    }
+}
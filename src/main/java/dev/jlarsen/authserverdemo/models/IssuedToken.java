@@ -0,0 +1,22 @@
+package dev.jlarsen.authserverdemo.models;
+
+import lombok.Data;
+
+import java.time.Instant;
+
+/**
+ * An access token we have issued, along with when it expires and its id (jti)
+ */
+@Data
+public class IssuedToken {
+
+    private final String token;
+    private final Instant expiresAt;
+    private final String jti;
+
+    public IssuedToken(String token, Instant expiresAt, String jti) {
+        this.token = token;
+        this.expiresAt = expiresAt;
+        this.jti = jti;
+    }
+}
@@ -1,6 +1,7 @@
 package dev.jlarsen.authserverdemo.models;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -12,6 +13,7 @@ import java.text.ParseException;
 
 @Data
 @Entity
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class JwkEntity {
 
     @Id
@@ -21,11 +23,15 @@ public class JwkEntity {
     private String kty;
     @JsonProperty("use")
     private String _use;
+    // EC keys use crv, x and y, OKP (Ed25519) keys only crv and x
     private String crv;
     private String d;
     private String x;
     private String y;
     private String alg;
+    // epoch millis this key generation was created, null for keys stored before rotation was scheduled
+    @JsonIgnore
+    private Long created;
     @Transient
     @JsonIgnore
     private ObjectMapper objectMapper = new ObjectMapper();
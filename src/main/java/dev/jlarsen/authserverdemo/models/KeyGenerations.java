@@ -0,0 +1,59 @@
+package dev.jlarsen.authserverdemo.models;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+import lombok.Data;
+
+import java.io.IOException;
+
+/**
+ * The key generations every node signs and verifies with, as published to the cluster by the node that rotated them
+ * Holds the private keys (JWK JSON), so cluster members must only ever be our own auth server nodes
+ */
+@Data
+public class KeyGenerations implements IdentifiedDataSerializable {
+
+    // increases with every rotation, nodes ignore anything older than what they already use
+    private long version;
+    // newest generation first, same index in each array
+    private int[] ids;
+    private long[] created;
+    private String[] jwks;
+
+    public KeyGenerations(long version, int[] ids, long[] created, String[] jwks) {
+        this.version = version;
+        this.ids = ids;
+        this.created = created;
+        this.jwks = jwks;
+    }
+
+    public KeyGenerations() {
+    }
+
+    @Override
+    public int getFactoryId() {
+        return ModelDataSerializableFactory.FACTORY_ID;
+    }
+
+    @Override
+    public int getClassId() {
+        return ModelDataSerializableFactory.KEY_GENERATIONS;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeLong(version);
+        out.writeIntArray(ids);
+        out.writeLongArray(created);
+        out.writeUTFArray(jwks);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        version = in.readLong();
+        ids = in.readIntArray();
+        created = in.readLongArray();
+        jwks = in.readUTFArray();
+    }
+}
@@ -0,0 +1,31 @@
+package dev.jlarsen.authserverdemo.models;
+
+import com.hazelcast.nio.serialization.DataSerializableFactory;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+
+/**
+ * Creates our Hazelcast map values from their type id, so members exchange just the fields
+ * (and two ints) instead of Java serialized class descriptors
+ */
+public class ModelDataSerializableFactory implements DataSerializableFactory {
+
+    public static final int FACTORY_ID = 1;
+
+    public static final int AUTH_CODE = 1;
+    public static final int REFRESH_TOKEN_RECORD = 2;
+    public static final int KEY_GENERATIONS = 3;
+
+    @Override
+    public IdentifiedDataSerializable create(int typeId) {
+        switch (typeId) {
+            case AUTH_CODE:
+                return new AuthCode();
+            case REFRESH_TOKEN_RECORD:
+                return new RefreshTokenRecord();
+            case KEY_GENERATIONS:
+                return new KeyGenerations();
+            default:
+                return null;
+        }
+    }
+}
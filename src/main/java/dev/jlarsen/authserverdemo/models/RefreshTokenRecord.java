@@ -0,0 +1,61 @@
+package dev.jlarsen.authserverdemo.models;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.IdentifiedDataSerializable;
+import lombok.Data;
+
+import java.io.IOException;
+
+/**
+ * What we know about an issued refresh token, stored under the hash of the token
+ * Every token issued by rotating another one shares its family id, so a reused token can revoke its descendants
+ * Once exchanged, the record stays (marked used) until the token would have expired, to recognize reuse
+ */
+@Data
+public class RefreshTokenRecord implements IdentifiedDataSerializable {
+
+    private String clientId;
+    private String subject;
+    private String familyId;
+    private long expiresAt;
+    private boolean used;
+
+    public RefreshTokenRecord(String clientId, String subject, String familyId, long expiresAt) {
+        this.clientId = clientId;
+        this.subject = subject;
+        this.familyId = familyId;
+        this.expiresAt = expiresAt;
+    }
+
+    public RefreshTokenRecord() {
+    }
+
+    @Override
+    public int getFactoryId() {
+        return ModelDataSerializableFactory.FACTORY_ID;
+    }
+
+    @Override
+    public int getClassId() {
+        return ModelDataSerializableFactory.REFRESH_TOKEN_RECORD;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException {
+        out.writeUTF(clientId);
+        out.writeUTF(subject);
+        out.writeUTF(familyId);
+        out.writeLong(expiresAt);
+        out.writeBoolean(used);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException {
+        clientId = in.readUTF();
+        subject = in.readUTF();
+        familyId = in.readUTF();
+        expiresAt = in.readLong();
+        used = in.readBoolean();
+    }
+}
@@ -0,0 +1,45 @@
+package dev.jlarsen.authserverdemo.models;
+
+import lombok.Data;
+import org.springframework.data.domain.Persistable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * A scope and the id ScopeRegistry interned it to. Rows are only ever inserted - an id given to one scope
+ * must never be given to another, or a bitset (e.g. in a scope claim) would grant the wrong scope.
+ */
+@Data
+@Entity
+@Table(name = "scope_id")
+public class ScopeIdEntity implements Persistable<String> {
+
+    @Id
+    private String scope;
+    @Column(name = "scope_id", unique = true, nullable = false)
+    private Integer scopeId;
+
+    public ScopeIdEntity() {
+    }
+
+    public ScopeIdEntity(String scope, Integer scopeId) {
+        this.scope = scope;
+        this.scopeId = scopeId;
+    }
+
+    @Override
+    public String getId() {
+        return scope;
+    }
+
+    /**
+     * Always new, so saving inserts (and fails on a scope or id already taken) rather than overwriting a row
+     */
+    @Override
+    public boolean isNew() {
+        return true;
+    }
+}
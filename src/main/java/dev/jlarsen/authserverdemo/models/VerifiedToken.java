@@ -0,0 +1,29 @@
+package dev.jlarsen.authserverdemo.models;
+
+import lombok.Data;
+import org.springframework.security.core.GrantedAuthority;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Result of a successful access token verification, everything needed to authenticate the bearer
+ */
+@Data
+public class VerifiedToken {
+
+    private final UserPrincipal principal;
+    private final String clientId;
+    private final String jti;
+    private final List<GrantedAuthority> authorities;
+    private final Instant expiresAt;
+
+    public VerifiedToken(UserPrincipal principal, String clientId, String jti, List<GrantedAuthority> authorities,
+                         Instant expiresAt) {
+        this.principal = principal;
+        this.clientId = clientId;
+        this.jti = jti;
+        this.authorities = authorities;
+        this.expiresAt = expiresAt;
+    }
+}
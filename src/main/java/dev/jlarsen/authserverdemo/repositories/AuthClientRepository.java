@@ -1,12 +1,21 @@
 package dev.jlarsen.authserverdemo.repositories;
 
 import dev.jlarsen.authserverdemo.models.AuthClient;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
-import java.util.Optional;
+import java.util.List;
 
 @Repository
 public interface AuthClientRepository extends CrudRepository<AuthClient, String> {
 
+    /**
+     * Ids of clients allowed to request a scope (uses the index on auth_client_scope)
+     * @param scope to look for
+     * @return client ids
+     */
+    @Query("select c.clientId from AuthClient c join c.scope s where s = :scope")
+    List<String> findClientIdsByScope(@Param("scope") String scope);
 }
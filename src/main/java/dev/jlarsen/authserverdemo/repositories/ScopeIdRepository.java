@@ -0,0 +1,16 @@
+package dev.jlarsen.authserverdemo.repositories;
+
+import dev.jlarsen.authserverdemo.models.ScopeIdEntity;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface ScopeIdRepository extends CrudRepository<ScopeIdEntity, String> {
+
+    /**
+     * @return highest id given to any scope, or null if there are none yet
+     */
+    @Query("select max(s.scopeId) from ScopeIdEntity s")
+    Integer findMaxScopeId();
+}
@@ -0,0 +1,241 @@
+package dev.jlarsen.authserverdemo.services;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.util.Base64URL;
+import dev.jlarsen.authserverdemo.models.IssuedToken;
+import lombok.SneakyThrows;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Mints signed access tokens without going through JWTClaimsSet / SignedJWT
+ * The header segment and constant claims are encoded once, the dynamic claims are written
+ * straight into a per-thread buffer which is base64url encoded and signed in place.
+ * The result is a regular compact JWS, so anything verifying with Nimbus (or any other library) accepts it.
+ */
+@Component
+public class AccessTokenMinter {
+
+    @Autowired
+    KeyService keyService;
+
+    static final String ISSUER = "http://auth-server:8081/oauth2";
+    static final String AUDIENCE = "http://localhost:8080";
+
+    // claims that are the same in every token we issue, appended after the dynamic ones
+    private static final byte[] STATIC_CLAIMS = (",\"iss\":\"" + ISSUER + "\",\"aud\":\"" + AUDIENCE +
+            "\",\"accountNo\":5000}").getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] BASE64URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    // encoded header of the ring we last signed with, swapped along with the ring
+    private volatile EncodedHeader encodedHeader;
+
+    /**
+     * Mints a signed access token with our current signing key
+     *
+     * @param clientId  of client token will be issued to
+     * @param subject   username of User the client belongs to, or the client itself for client_credentials
+     * @param scope     granted scope (space separated), or null to leave out the scope claim
+     * @param issuedAt  issue time, whole seconds
+     * @param expiresAt expiry time, whole seconds
+     * @return access token (as a serialized self-signed JWT) and its expiry
+     */
+    @SneakyThrows(JOSEException.class)
+    public IssuedToken mint(String clientId, String subject, String scope, Instant issuedAt, Instant expiresAt) {
+        KeyRing ring = keyService.getKeyRing();
+        EncodedHeader header = getEncodedHeader(ring);
+        Buffers b = buffers.get();
+
+        // claims JSON
+        ByteBuffer claims = b.claims.reset();
+        claims.writeAscii("{\"sub\":");
+        writeJsonString(claims, subject);
+        claims.writeAscii(",\"exp\":");
+        claims.writeLong(expiresAt.getEpochSecond());
+        claims.writeAscii(",\"iat\":");
+        claims.writeLong(issuedAt.getEpochSecond());
+        claims.writeAscii(",\"cid\":");
+        writeJsonString(claims, clientId);
+        // unique id, so the token can be revoked
+        String jti = UUID.randomUUID().toString();
+        claims.writeAscii(",\"jti\":");
+        writeJsonString(claims, jti);
+        if (scope != null) {
+            claims.writeAscii(",\"scope\":");
+            writeJsonString(claims, scope);
+        }
+        claims.write(STATIC_CLAIMS);
+
+        // signing input is header.payload
+        ByteBuffer token = b.token.reset();
+        token.write(header.bytes);
+        token.write('.');
+        writeBase64Url(token, claims.bytes, claims.length);
+
+        Base64URL signature = ring.getSigner().sign(ring.getSigningHeader(),
+                Arrays.copyOf(token.bytes, token.length));
+        token.write('.');
+        token.writeAscii(signature.toString());
+        return new IssuedToken(new String(token.bytes, 0, token.length, StandardCharsets.US_ASCII), expiresAt, jti);
+    }
+
+    private EncodedHeader getEncodedHeader(KeyRing ring) {
+        EncodedHeader header = encodedHeader;
+        if (header == null || header.ring != ring) {
+            header = new EncodedHeader(ring);
+            encodedHeader = header;
+        }
+        return header;
+    }
+
+    /**
+     * Writes a quoted, escaped JSON string as UTF-8
+     */
+    static void writeJsonString(ByteBuffer out, String value) {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.writeAscii("\\u00");
+                out.write(HEX[c >> 4]);
+                out.write(HEX[c & 0xf]);
+            } else if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xc0 | (c >> 6));
+                out.write(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                out.write(0xf0 | (cp >> 18));
+                out.write(0x80 | ((cp >> 12) & 0x3f));
+                out.write(0x80 | ((cp >> 6) & 0x3f));
+                out.write(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, can't be encoded
+                out.writeAscii("\\ufffd");
+            } else {
+                out.write(0xe0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3f));
+                out.write(0x80 | (c & 0x3f));
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * Writes src as unpadded base64url
+     */
+    static void writeBase64Url(ByteBuffer out, byte[] src, int length) {
+        out.ensureCapacity((length + 2) / 3 * 4);
+        int i = 0;
+        for (; i + 2 < length; i += 3) {
+            int n = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            out.write(BASE64URL[n >>> 18]);
+            out.write(BASE64URL[(n >>> 12) & 0x3f]);
+            out.write(BASE64URL[(n >>> 6) & 0x3f]);
+            out.write(BASE64URL[n & 0x3f]);
+        }
+        if (length - i == 1) {
+            int n = (src[i] & 0xff) << 16;
+            out.write(BASE64URL[n >>> 18]);
+            out.write(BASE64URL[(n >>> 12) & 0x3f]);
+        } else if (length - i == 2) {
+            int n = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8;
+            out.write(BASE64URL[n >>> 18]);
+            out.write(BASE64URL[(n >>> 12) & 0x3f]);
+            out.write(BASE64URL[(n >>> 6) & 0x3f]);
+        }
+    }
+
+    private static final class EncodedHeader {
+
+        private final KeyRing ring;
+        private final byte[] bytes;
+
+        private EncodedHeader(KeyRing ring) {
+            this.ring = ring;
+            this.bytes = ring.getSigningHeader().toBase64URL().toString().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static final class Buffers {
+
+        private final ByteBuffer claims = new ByteBuffer(256);
+        private final ByteBuffer token = new ByteBuffer(512);
+    }
+
+    /**
+     * Growable byte array, reused by the thread that owns it
+     */
+    static final class ByteBuffer {
+
+        private byte[] bytes;
+        private int length;
+
+        ByteBuffer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        ByteBuffer reset() {
+            length = 0;
+            return this;
+        }
+
+        void ensureCapacity(int extra) {
+            if (length + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+            }
+        }
+
+        void write(int b) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) b;
+        }
+
+        void write(byte[] src) {
+            ensureCapacity(src.length);
+            System.arraycopy(src, 0, bytes, length, src.length);
+            length += src.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        void writeAscii(String s) {
+            ensureCapacity(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                bytes[length++] = (byte) s.charAt(i);
+            }
+        }
+
+        // non-negative only, which is all JWT dates need
+        void writeLong(long value) {
+            int digits = 1;
+            for (long v = value; v >= 10; v /= 10) {
+                digits++;
+            }
+            ensureCapacity(digits);
+            for (int i = length + digits - 1; i >= length; i--) {
+                bytes[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += digits;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package dev.jlarsen.authserverdemo.services;
+
+import dev.jlarsen.authserverdemo.models.IssuedToken;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Optional cache of client_credentials access tokens, keyed by client and (normalized) scope
+ * A previously issued token is handed out again while enough of its lifetime remains,
+ * so frequent machine to machine callers don't cost us a new signature on every request
+ * Tokens are held per client, at most max-scopes-per-client of them (one per distinct requested scope),
+ * so a client with hundreds of scopes can't grow the cache without bound, and evicting a client is one remove.
+ */
+@Service
+public class AccessTokenReuseCache {
+
+    @Value("${tokens.reuse.enabled:false}")
+    boolean enabled;
+
+    // a token is only reused while it has at least this long left to live
+    @Value("${tokens.reuse.min-remaining-seconds:3600}")
+    long minRemainingSeconds;
+
+    // cached tokens of one client, beyond this the one expiring first makes room
+    @Value("${tokens.reuse.max-scopes-per-client:16}")
+    int maxScopesPerClient;
+
+    // client id -> (normalized scope -> token)
+    private final Map<String, Map<String, IssuedToken>> tokens = new ConcurrentHashMap<>();
+
+    /**
+     * @param clientId of client requesting a token
+     * @param scope    normalized (sorted, space separated) scope of the request
+     * @return previously issued token, or null if there is none with enough lifetime left
+     */
+    public IssuedToken get(String clientId, String scope) {
+        if (!enabled) {
+            return null;
+        }
+        Map<String, IssuedToken> scopes = tokens.get(clientId);
+        IssuedToken issued = scopes == null ? null : scopes.get(scope);
+        if (issued != null && !isReusable(issued, Instant.now())) {
+            scopes.remove(scope, issued);
+            return null;
+        }
+        return issued;
+    }
+
+    /**
+     * @param clientId of client the token was issued to
+     * @param scope    normalized (sorted, space separated) scope of the token
+     * @param issued   token to be reused
+     */
+    public void put(String clientId, String scope, IssuedToken issued) {
+        if (!enabled) {
+            return;
+        }
+        Map<String, IssuedToken> scopes = tokens.computeIfAbsent(clientId, id -> new ConcurrentHashMap<>());
+        if (scopes.size() >= maxScopesPerClient && !scopes.containsKey(scope)) {
+            makeRoom(scopes);
+        }
+        scopes.put(scope, issued);
+    }
+
+    /**
+     * Stop handing out any cached tokens for a client
+     * @param clientId of client
+     */
+    public void evict(String clientId) {
+        tokens.remove(clientId);
+    }
+
+    /**
+     * Drops tokens of a full client that can't be reused anymore, or if they all still can, the one expiring first
+     * (concurrent puts may still go a little past the limit, but never grow it)
+     */
+    private void makeRoom(Map<String, IssuedToken> scopes) {
+        Instant now = Instant.now();
+        scopes.values().removeIf(issued -> !isReusable(issued, now));
+        if (scopes.size() >= maxScopesPerClient) {
+            scopes.entrySet().stream()
+                    .min(Comparator.comparing(entry -> entry.getValue().getExpiresAt()))
+                    .ifPresent(entry -> scopes.remove(entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private boolean isReusable(IssuedToken issued, Instant now) {
+        return !issued.getExpiresAt().isBefore(now.plusSeconds(minRemainingSeconds));
+    }
+}
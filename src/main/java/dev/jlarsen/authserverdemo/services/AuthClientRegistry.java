@@ -0,0 +1,158 @@
+package dev.jlarsen.authserverdemo.services;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.topic.ITopic;
+import dev.jlarsen.authserverdemo.config.ClientCredentialCache;
+import dev.jlarsen.authserverdemo.models.AuthClient;
+import dev.jlarsen.authserverdemo.repositories.AuthClientRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * All AuthClients, held in memory as an immutable snapshot so looking one up is a single map read
+ * A change replaces the whole snapshot (copy-on-write) and is announced on the "auth-client-changes" topic,
+ * so every node reloads that client from the database and forgets anything it cached for it.
+ * Clients handed out are shared by every request - treat them as read only and change them through save().
+ * Each client's scope is also kept as a ScopeRegistry bitset, so requested scope can be checked without copying.
+ */
+// old rows must have their scope, claims and grants migrated before we load them
+@DependsOn("authClientColumnMigration")
+@Service
+public class AuthClientRegistry {
+
+    @Autowired
+    AuthClientRepository authClientRepository;
+
+    @Autowired
+    HazelcastInstance hazelcastInstance;
+
+    @Autowired
+    ClientCredentialCache clientCredentialCache;
+
+    @Autowired
+    AccessTokenReuseCache accessTokenReuseCache;
+
+    @Autowired
+    ScopeRegistry scopeRegistry;
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap(), Collections.emptyMap());
+
+    // ids of clients changed on any node
+    private ITopic<String> changes;
+
+    @PostConstruct
+    public void init() {
+        changes = hazelcastInstance.getTopic("auth-client-changes");
+        changes.addMessageListener(message -> reload(message.getMessageObject()));
+        reloadAll();
+    }
+
+    /**
+     * @param clientId of AuthClient to be retrieved
+     * @return AuthClient, or null if there is no such client
+     */
+    public AuthClient get(String clientId) {
+        return clientId == null ? null : snapshot.clients.get(clientId);
+    }
+
+    /**
+     * Checks requested scope against the scope a client is authorized for (see ScopeRegistry)
+     * @param clientId of client
+     * @param requested scope names of the request, left as is
+     * @return true if the client exists and is authorized for every requested scope
+     */
+    public boolean allowsScope(String clientId, Collection<String> requested) {
+        long[] authorized = clientId == null ? null : snapshot.scopes.get(clientId);
+        return authorized != null && scopeRegistry.allows(authorized, requested);
+    }
+
+    /**
+     * Saves a new or changed client, and tells every node about it
+     * @param client to be saved
+     * @return saved AuthClient
+     */
+    public AuthClient save(AuthClient client) {
+        AuthClient saved = authClientRepository.save(client);
+        // apply here right away, our own message comes back later
+        swap(saved.getClientId(), saved);
+        changes.publish(saved.getClientId());
+        return saved;
+    }
+
+    /**
+     * Deletes a client, on every node
+     * @param clientId of client to be deleted
+     */
+    public void delete(String clientId) {
+        authClientRepository.deleteById(clientId);
+        swap(clientId, null);
+        changes.publish(clientId);
+    }
+
+    /**
+     * Safety net for clients changed directly in the database, reloads the whole snapshot
+     */
+    @Scheduled(fixedDelayString = "${clients.registry.reload-interval-ms:300000}",
+            initialDelayString = "${clients.registry.reload-interval-ms:300000}")
+    public synchronized void reloadAll() {
+        Map<String, AuthClient> clients = new HashMap<>();
+        Map<String, long[]> scopes = new HashMap<>();
+        for (AuthClient client : authClientRepository.findAll()) {
+            clients.put(client.getClientId(), client);
+            scopes.put(client.getClientId(), encodeScope(client));
+        }
+        snapshot = new Snapshot(clients, scopes);
+    }
+
+    private void reload(String clientId) {
+        Optional<AuthClient> client = authClientRepository.findById(clientId);
+        swap(clientId, client.orElse(null));
+    }
+
+    /**
+     * Replaces (or removes) one client in a copy of the snapshot, then drops anything cached for it
+     */
+    private void swap(String clientId, AuthClient client) {
+        long[] scope = client == null ? null : encodeScope(client);
+        synchronized (this) {
+            Map<String, AuthClient> clients = new HashMap<>(snapshot.clients);
+            Map<String, long[]> scopes = new HashMap<>(snapshot.scopes);
+            if (client == null) {
+                clients.remove(clientId);
+                scopes.remove(clientId);
+            } else {
+                clients.put(clientId, client);
+                scopes.put(clientId, scope);
+            }
+            snapshot = new Snapshot(clients, scopes);
+        }
+        // its secret, scope or grants may have changed
+        clientCredentialCache.invalidate(clientId);
+        accessTokenReuseCache.evict(clientId);
+    }
+
+    private long[] encodeScope(AuthClient client) {
+        return scopeRegistry.encode(client.getScope() == null ? Collections.emptyList() : client.getScope());
+    }
+
+    private static final class Snapshot {
+
+        private final Map<String, AuthClient> clients;
+        // client id -> bitset of its scope
+        private final Map<String, long[]> scopes;
+
+        private Snapshot(Map<String, AuthClient> clients, Map<String, long[]> scopes) {
+            this.clients = Collections.unmodifiableMap(clients);
+            this.scopes = Collections.unmodifiableMap(scopes);
+        }
+    }
+}
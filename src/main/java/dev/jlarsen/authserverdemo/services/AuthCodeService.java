@@ -1,18 +1,75 @@
 package dev.jlarsen.authserverdemo.services;
 
-import com.nimbusds.jose.*;
-import com.nimbusds.jose.crypto.ECDSASigner;
-import com.nimbusds.jose.jwk.Curve;
-import com.nimbusds.jose.jwk.ECKey;
-import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.IMap;
+import dev.jlarsen.authserverdemo.models.AuthCode;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.security.SecureRandom;
-import java.util.Base64;
+import javax.annotation.PostConstruct;
+import java.util.Map;
 
+/**
+ * Holds issued authorization codes in the Hazelcast "codes" map, one entry per code_id
+ * so a client can have any number of codes outstanding at once
+ */
 @Service
 public class AuthCodeService {
 
+    @Autowired
+    HazelcastInstance hazelcastInstance;
 
+    private IMap<String, AuthCode> codes;
 
+    @PostConstruct
+    public void init() {
+        codes = hazelcastInstance.getMap("codes");
+    }
+
+    /**
+     * Stores a newly issued code, it expires with the map's TTL
+     * @param codeId   unique id of the code
+     * @param authCode details of the code request the code was issued for
+     */
+    public void store(String codeId, AuthCode authCode) {
+        codes.set(codeId, authCode);
+    }
+
+    /**
+     * Atomically removes and returns a code, in a single round trip to the member owning it.
+     * If two requests race to exchange the same code only one of them gets it.
+     * @param codeId   of code being exchanged
+     * @param clientId of authenticated client exchanging the code
+     * @return the code, or null if it doesn't exist, was already used, or belongs to another client
+     */
+    public AuthCode consume(String codeId, String clientId) {
+        if (codeId == null) {
+            return null;
+        }
+        return codes.executeOnKey(codeId, new ConsumeCodeProcessor(clientId));
+    }
+
+    /**
+     * Removes the code if it belongs to the client, leaving another client's code untouched
+     */
+    static class ConsumeCodeProcessor implements EntryProcessor<String, AuthCode, AuthCode> {
+
+        private final String clientId;
+
+        ConsumeCodeProcessor(String clientId) {
+            this.clientId = clientId;
+        }
+
+        @Override
+        public AuthCode process(Map.Entry<String, AuthCode> entry) {
+            AuthCode authCode = entry.getValue();
+            if (authCode == null || !authCode.getClientId().equals(clientId)) {
+                return null;
+            }
+            // setting the value to null removes the entry
+            entry.setValue(null);
+            return authCode;
+        }
+    }
 }
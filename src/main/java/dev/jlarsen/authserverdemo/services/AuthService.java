@@ -1,14 +1,16 @@
 package dev.jlarsen.authserverdemo.services;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.jlarsen.authserverdemo.RandomStringGenerator;
 import dev.jlarsen.authserverdemo.exceptions.CodeRequestError;
 import dev.jlarsen.authserverdemo.exceptions.TokenException;
 import dev.jlarsen.authserverdemo.exceptions.TokenRequestError;
+import dev.jlarsen.authserverdemo.metrics.OAuthMetrics;
 import dev.jlarsen.authserverdemo.models.AuthClient;
+import dev.jlarsen.authserverdemo.models.AuthCode;
 import dev.jlarsen.authserverdemo.models.CodeRequest;
-import dev.jlarsen.authserverdemo.repositories.AuthClientRepository;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.annotation.CachePut;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.net.URLEncoder;
@@ -26,24 +28,41 @@ public class AuthService {
     KeyService keyService;
 
     @Autowired
-    AuthClientRepository authClientRepository;
+    AuthClientRegistry authClientRegistry;
 
     @Autowired
     ObjectMapper objectMapper;
 
+    @Autowired
+    OAuthMetrics oauthMetrics;
+
+    @Autowired
+    AuthCodeService authCodeService;
+
+    @Autowired
+    RandomStringGenerator randomStringGenerator;
+
+    // "jws" for self-signed codes, "opaque" for short random codes with nothing to sign or verify
+    @Value("${codes.format:jws}")
+    String codeFormat;
+
     /**
      * Verifies client authorization code requests
      * @param codeRequest request to be verified
      * @return CodeRequestError.NONE if code passes verification
      */
     public CodeRequestError verifyClientCodeRequest(CodeRequest codeRequest) {
-        AuthClient client;
-        Optional<AuthClient> optional = authClientRepository.findById(codeRequest.getClientId());
+        long start = System.nanoTime();
+        CodeRequestError error = checkClientCodeRequest(codeRequest);
+        oauthMetrics.recordCodeRequest(error, System.nanoTime() - start);
+        return error;
+    }
+
+    private CodeRequestError checkClientCodeRequest(CodeRequest codeRequest) {
+        AuthClient client = authClientRegistry.get(codeRequest.getClientId());
 
         // first verify client_id exists and redirect_uri match
-        if (optional.isPresent() && optional.get().getRedirectUri().equals(codeRequest.getRedirectUri())) {
-            client = optional.get();
-        } else {
+        if (client == null || !client.getRedirectUri().equals(codeRequest.getRedirectUri())) {
             // we will show this locally and not redirect
             return CodeRequestError.INVALID_REQUEST;
         }
@@ -58,10 +77,8 @@ public class AuthService {
             return CodeRequestError.UNAUTHORIZED_CLIENT;
         }
 
-        // verify requested scope
-        ArrayList<String> requestedScope = codeRequest.getScope();
-        ArrayList<String> authorizedScope = client.getScope();
-        if (requestedScope.retainAll(authorizedScope)) {
+        // verify requested scope (bit tests against the client's precomputed scope, the request is left as is)
+        if (!authClientRegistry.allowsScope(client.getClientId(), codeRequest.getScope())) {
             return CodeRequestError.INVALID_SCOPE;
         }
         return CodeRequestError.NONE;
@@ -69,19 +86,33 @@ public class AuthService {
 
     /**
      * Creates a map with required information then stores it as payload in our self-signed authorization code
+     * The code is also stored under its code_id until it is exchanged or expires.
+     * In opaque mode the code is just a random code_id, and the stored details are all there is.
      * @param codeRequest the code request
      * @param principal client requesting code
-     * @return authorization code (as a serialized self-signed JWT)
+     * @return authorization code (as a serialized self-signed JWT, or an opaque random string)
      */
-    @CachePut(value = "codes", key = "#codeRequest.clientId")
     public String getAuthCode(CodeRequest codeRequest, Principal principal) {
+        Instant expires = Instant.now().plus(3, ChronoUnit.MINUTES);
+        AuthCode authCode = new AuthCode(codeRequest.getClientId(), codeRequest.getRedirectUri(),
+                principal.getName(), expires.toEpochMilli());
+
+        if (codeFormat.equals("opaque")) {
+            String code = randomStringGenerator.generate();
+            authCodeService.store(code, authCode);
+            return code;
+        }
+
+        String codeId = UUID.randomUUID().toString();
+        authCodeService.store(codeId, authCode);
+
         // create map of parameters to be stored as payload inside code
         Map<String, Object> map = new HashMap<>();
         map.put("client_id", codeRequest.getClientId());
         map.put("redirect_uri", codeRequest.getRedirectUri());
         map.put("user_id", principal.getName());
-        map.put("code_id", UUID.randomUUID().toString());
-        map.put("expires", Instant.now().plus(3, ChronoUnit.MINUTES).toString());
+        map.put("code_id", codeId);
+        map.put("expires", expires.toString());
 
         // create self-signed JWT (JWS) as auth code and serialize it for return to client
         return keyService.createJws(map).serialize();
@@ -108,12 +139,11 @@ public class AuthService {
     }
 
     /**
-     * Retrieves an AuthClient from the repository
+     * Retrieves an AuthClient from the registry (no database access)
      * @param clientId of AuthClient to be retrieved
-     * @return AuthClient
+     * @return AuthClient, or null if there is no such client
      */
     public AuthClient getClient(String clientId) {
-        Optional<AuthClient> client = authClientRepository.findById(clientId);
-        return client.orElse(null);
+        return authClientRegistry.get(clientId);
     }
 }
@@ -0,0 +1,245 @@
+package dev.jlarsen.authserverdemo.services;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.util.Base64URL;
+import dev.jlarsen.authserverdemo.exceptions.TokenException;
+import dev.jlarsen.authserverdemo.exceptions.TokenRequestError;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal parser for our compact serialized access tokens (header.payload.signature)
+ * Only reads the fields Bearer validation needs - alg and kid from the header, exp, sub, cid and jti from the payload -
+ * with a streaming reader, instead of building a JWSObject and a full claims Map for every request.
+ * Segments are located by index into the token, nothing is decoded until the token is known to be well-formed.
+ */
+final class CompactJws {
+
+    // our tokens are a few hundred bytes, anything far bigger isn't one of ours
+    static final int MAX_LENGTH = 4096;
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    // the only thing verifiers look at in the header is alg, so one header per supported algorithm is enough
+    private static final Map<String, JWSHeader> VERIFICATION_HEADERS;
+
+    static {
+        Map<String, JWSHeader> map = new HashMap<>();
+        map.put(JWSAlgorithm.ES256.getName(), new JWSHeader(JWSAlgorithm.ES256));
+        map.put(JWSAlgorithm.EdDSA.getName(), new JWSHeader(JWSAlgorithm.EdDSA));
+        VERIFICATION_HEADERS = Collections.unmodifiableMap(map);
+    }
+
+    private static final int[] BASE64URL = new int[128];
+
+    static {
+        Arrays.fill(BASE64URL, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64URL[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private final String token;
+    private final int secondDot;
+
+    private JWSHeader header;
+    private String keyId;
+    private String subject;
+    private String clientId;
+    private String jti;
+    private long expiresAt = -1;
+
+    private CompactJws(String token, int secondDot) {
+        this.token = token;
+        this.secondDot = secondDot;
+    }
+
+    /**
+     * Parses a compact JWS, rejecting anything that isn't a well-formed, signed token using an algorithm we support
+     *
+     * @param token compact serialized JWS
+     * @return parsed token, its signature not yet verified
+     */
+    static CompactJws parse(String token) {
+        if (token == null || token.isEmpty() || token.length() > MAX_LENGTH) {
+            throw invalid();
+        }
+        int firstDot = -1;
+        int secondDot = -1;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c == '.') {
+                if (firstDot < 0) {
+                    firstDot = i;
+                } else if (secondDot < 0) {
+                    secondDot = i;
+                } else {
+                    // a JWE or something else entirely
+                    throw invalid();
+                }
+            } else if (c >= 128 || BASE64URL[c] < 0) {
+                throw invalid();
+            }
+        }
+        // all three segments must be present, the signature can't be empty
+        if (firstDot <= 0 || secondDot <= firstDot + 1 || secondDot == token.length() - 1) {
+            throw invalid();
+        }
+
+        CompactJws jws = new CompactJws(token, secondDot);
+        try {
+            jws.readHeader(decode(token, 0, firstDot));
+            jws.readPayload(decode(token, firstDot + 1, secondDot));
+        } catch (IOException e) {
+            throw invalid();
+        }
+        if (jws.header == null || jws.subject == null || jws.expiresAt < 0) {
+            throw invalid();
+        }
+        return jws;
+    }
+
+    private void readHeader(byte[] json) throws IOException {
+        try (JsonParser parser = JSON.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw invalid();
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "alg":
+                        header = value == JsonToken.VALUE_STRING ? VERIFICATION_HEADERS.get(parser.getText()) : null;
+                        if (header == null) {
+                            // none, or an algorithm we never sign with
+                            throw invalid();
+                        }
+                        break;
+                    case "kid":
+                        keyId = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                        break;
+                    case "crit":
+                        // we don't understand any critical header parameters
+                        throw invalid();
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private void readPayload(byte[] json) throws IOException {
+        try (JsonParser parser = JSON.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw invalid();
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                switch (field) {
+                    case "exp":
+                        if (value != JsonToken.VALUE_NUMBER_INT) {
+                            throw invalid();
+                        }
+                        expiresAt = parser.getLongValue();
+                        break;
+                    case "sub":
+                        subject = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                        break;
+                    case "cid":
+                        clientId = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                        break;
+                    case "jti":
+                        jti = value == JsonToken.VALUE_STRING ? parser.getText() : null;
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return header to be handed to the verifier, only carries alg
+     */
+    JWSHeader getHeader() {
+        return header;
+    }
+
+    String getKeyId() {
+        return keyId;
+    }
+
+    String getSubject() {
+        return subject;
+    }
+
+    String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * @return jti claim, null for tokens issued before we added it
+     */
+    String getJti() {
+        return jti;
+    }
+
+    /**
+     * @return exp claim, in epoch seconds
+     */
+    long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @return ASCII bytes of header.payload, exactly what was signed
+     */
+    byte[] getSigningInput() {
+        byte[] bytes = new byte[secondDot];
+        for (int i = 0; i < secondDot; i++) {
+            bytes[i] = (byte) token.charAt(i);
+        }
+        return bytes;
+    }
+
+    Base64URL getSignature() {
+        return new Base64URL(token.substring(secondDot + 1));
+    }
+
+    /**
+     * Decodes an unpadded base64url segment of the token, the characters were already checked by parse
+     */
+    private static byte[] decode(String s, int from, int to) {
+        int length = to - from;
+        if (length % 4 == 1) {
+            throw invalid();
+        }
+        byte[] out = new byte[length * 3 / 4];
+        int o = 0;
+        int bits = 0;
+        int buffer = 0;
+        for (int i = from; i < to; i++) {
+            buffer = (buffer << 6 | BASE64URL[s.charAt(i)]) & 0xfffff;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                out[o++] = (byte) (buffer >> bits);
+            }
+        }
+        return out;
+    }
+
+    private static TokenException invalid() {
+        return new TokenException(TokenRequestError.INVALID_GRANT);
+    }
+}
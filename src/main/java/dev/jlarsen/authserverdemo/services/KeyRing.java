@@ -0,0 +1,107 @@
+package dev.jlarsen.authserverdemo.services;
+
+import com.nimbusds.jose.*;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.crypto.ECDSAVerifier;
+import com.nimbusds.jose.crypto.Ed25519Signer;
+import com.nimbusds.jose.crypto.Ed25519Verifier;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.OctetKeyPair;
+import lombok.SneakyThrows;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the servers current key generations, indexed by key id (kid)
+ * Verifiers, the signer and the encoded signing header are built once when the ring is created
+ * and reused for every signature, so a rotation swaps all of them at once
+ * Keys may be EC (ES256) or OKP (Ed25519/EdDSA), each kid gets a verifier for its own key type,
+ * so tokens signed before a switch of algorithm keep verifying until their key is retired
+ */
+public class KeyRing {
+
+    private final JWKSet jwkSet;
+    private final JWK signingKey;
+    private final JWSSigner signer;
+    private final JWSHeader signingHeader;
+    private final Map<String, JWSVerifier> verifiers;
+
+    /**
+     * Builds a key ring from our published keys
+     * @param keys next, current and past key generations, newest first
+     * @param signingKey the key we currently sign with
+     */
+    @SneakyThrows
+    public KeyRing(List<JWK> keys, JWK signingKey) {
+        this.jwkSet = new JWKSet(keys);
+        this.signingKey = signingKey;
+        this.signer = createSigner(signingKey);
+        // parse the header back from its encoding so it keeps the encoded segment,
+        // JWSObject will then reuse it rather than serializing and encoding the header for every signature
+        JWSHeader header = new JWSHeader.Builder(algorithmOf(signingKey))
+                .keyID(signingKey.getKeyID())
+                .type(JOSEObjectType.JWT)
+                .build();
+        this.signingHeader = JWSHeader.parse(header.toBase64URL());
+        Map<String, JWSVerifier> map = new HashMap<>();
+        for (JWK jwk : jwkSet.getKeys()) {
+            map.put(jwk.getKeyID(), createVerifier(jwk));
+        }
+        this.verifiers = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * @param jwk key to sign with
+     * @return JWS algorithm for the key, keys stored without alg are ES256 (the only type we used to create)
+     */
+    public static JWSAlgorithm algorithmOf(JWK jwk) {
+        if (jwk.getAlgorithm() != null) {
+            return JWSAlgorithm.parse(jwk.getAlgorithm().getName());
+        }
+        return jwk instanceof OctetKeyPair ? JWSAlgorithm.EdDSA : JWSAlgorithm.ES256;
+    }
+
+    private static JWSSigner createSigner(JWK jwk) throws JOSEException {
+        if (jwk instanceof OctetKeyPair) {
+            return new Ed25519Signer((OctetKeyPair) jwk);
+        }
+        return new ECDSASigner((ECKey) jwk);
+    }
+
+    private static JWSVerifier createVerifier(JWK jwk) throws JOSEException {
+        if (jwk instanceof OctetKeyPair) {
+            return new Ed25519Verifier(((OctetKeyPair) jwk).toPublicJWK());
+        }
+        return new ECDSAVerifier(((ECKey) jwk).toPublicJWK());
+    }
+
+    public JWKSet getJwkSet() {
+        return jwkSet;
+    }
+
+    public JWK getSigningKey() {
+        return signingKey;
+    }
+
+    public JWSSigner getSigner() {
+        return signer;
+    }
+
+    public JWSHeader getSigningHeader() {
+        return signingHeader;
+    }
+
+    /**
+     * Looks up the verifier for a key id
+     * @param kid from the header of the JWS to be verified
+     * @return verifier for that key, or null if the key id is unknown (or missing)
+     */
+    public JWSVerifier getVerifier(String kid) {
+        return verifiers.get(kid);
+    }
+}
@@ -2,25 +2,33 @@ package dev.jlarsen.authserverdemo.services;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hazelcast.core.EntryAdapter;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
 import com.nimbusds.jose.*;
-import com.nimbusds.jose.crypto.ECDSASigner;
 import com.nimbusds.jose.jwk.*;
-import com.nimbusds.jose.jwk.source.DefaultJWKSetCache;
+import com.nimbusds.jose.jwk.gen.OctetKeyPairGenerator;
 import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.jwt.SignedJWT;
+import dev.jlarsen.authserverdemo.metrics.OAuthMetrics;
 import dev.jlarsen.authserverdemo.models.JwkEntity;
+import dev.jlarsen.authserverdemo.models.KeyGenerations;
 import dev.jlarsen.authserverdemo.repositories.JwkRepository;
 import lombok.SneakyThrows;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import javax.transaction.Transactional;
+import javax.annotation.PostConstruct;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.interfaces.ECPrivateKey;
 import java.security.interfaces.ECPublicKey;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Service
 public class KeyService {
@@ -31,34 +39,93 @@ public class KeyService {
     @Autowired
     ObjectMapper objectMapper;
 
-    private final DefaultJWKSetCache jwkSetCache;
+    @Autowired
+    OAuthMetrics oauthMetrics;
+
+    @Autowired
+    HazelcastInstance hazelcastInstance;
+
+    // number of key generations (current signer plus past signers) kept for verification
+    @Value("${keys.retained-generations:2}")
+    int retainedGenerations;
+
+    // how often a new key generation is created
+    @Value("${keys.rotation-period-minutes:20160}")
+    long rotationPeriodMinutes;
+
+    // how long a new key is published in the JWKSet before we start signing with it
+    @Value("${keys.publish-ahead-minutes:1440}")
+    long publishAheadMinutes;
+
+    // algorithm of new key generations, ES256 (P-256) or EdDSA (Ed25519)
+    @Value("${keys.algorithm:ES256}")
+    String algorithm;
+
+    // newest generation first, only touched by the thread holding rotationLock
+    private List<JwkEntity> generations;
+    // version of the cluster's KeyGenerations our generations came from
+    private long appliedVersion = -1;
+
+    private volatile KeyRing keyRing;
+
+    private final ReentrantLock rotationLock = new ReentrantLock();
+
+    // the cluster's current key generations, under a single key which is also locked by the rotating node
+    private IMap<String, KeyGenerations> clusterGenerations;
+
+    private static final String GENERATIONS = "generations";
 
-    public KeyService() {
-        this.jwkSetCache = new DefaultJWKSetCache(20160, 20160, TimeUnit.MINUTES);
+    /**
+     * Load our keys before the first request needs them, from the cluster if another node is already running,
+     * otherwise from the database (creating them if there are none)
+     */
+    @PostConstruct
+    public void init() {
+        if (!JWSAlgorithm.ES256.getName().equals(algorithm) && !JWSAlgorithm.EdDSA.getName().equals(algorithm)) {
+            throw new IllegalStateException("keys.algorithm must be ES256 or EdDSA, not " + algorithm);
+        }
+        clusterGenerations = hazelcastInstance.getMap("key-generations");
+        clusterGenerations.addEntryListener(new EntryAdapter<String, KeyGenerations>() {
+            @Override
+            public void onEntryEvent(EntryEvent<String, KeyGenerations> event) {
+                if (event.getValue() != null) {
+                    applyGenerations(event.getValue());
+                }
+            }
+        }, true);
+        // wait for any node rotating right now, so we start with the keys it publishes
+        clusterGenerations.lock(GENERATIONS);
+        try {
+            rotate();
+        } finally {
+            clusterGenerations.unlock(GENERATIONS);
+        }
     }
 
     /**
-     * Creates a new JWK from an EC keypair, also stored as a JwkEntity
+     * Creates a new JWK for the configured algorithm
      *
      * @return JWK
      */
     @SneakyThrows
     public JWK createJwk() {
+        if (JWSAlgorithm.EdDSA.getName().equals(algorithm)) {
+            return new OctetKeyPairGenerator(Curve.Ed25519)
+                    .keyID(UUID.randomUUID().toString())
+                    .keyUse(KeyUse.SIGNATURE)
+                    .algorithm(JWSAlgorithm.EdDSA)
+                    .generate();
+        }
         KeyPairGenerator gen = KeyPairGenerator.getInstance("EC");
         gen.initialize(Curve.P_256.toECParameterSpec());
         KeyPair keyPair = gen.generateKeyPair();
 
-        JWK jwk = new ECKey.Builder(Curve.P_256, (ECPublicKey) keyPair.getPublic())
+        return new ECKey.Builder(Curve.P_256, (ECPublicKey) keyPair.getPublic())
                 .privateKey((ECPrivateKey) keyPair.getPrivate())
                 .keyID(UUID.randomUUID().toString())
                 .keyUse(KeyUse.SIGNATURE)
                 .algorithm(new Algorithm("ES256"))
                 .build();
-
-        JwkEntity jwkEntity = convertJwkToJwkEntity(jwk);
-        jwkEntity.setId(0);
-        jwkRepository.save(jwkEntity);
-        return jwk;
     }
 
     /**
@@ -69,16 +136,9 @@ public class KeyService {
      */
     @SneakyThrows
     public JWSObject createJws(Map<String, Object> map) {
-
-        ECKey ecJWK = (ECKey) getJwkSet().getKeys().get(0);
-        JWSSigner signer = new ECDSASigner(ecJWK);
-        JWSObject jwsObject = new JWSObject(
-                new JWSHeader.Builder(JWSAlgorithm.ES256)
-                        .keyID(ecJWK.getKeyID())
-                        .type(JOSEObjectType.JWT)
-                        .build(),
-                new Payload(map));
-        jwsObject.sign(signer);
+        KeyRing ring = getKeyRing();
+        JWSObject jwsObject = new JWSObject(ring.getSigningHeader(), new Payload(map));
+        jwsObject.sign(ring.getSigner());
         return jwsObject;
     }
 
@@ -90,81 +150,210 @@ public class KeyService {
      */
     @SneakyThrows
     public SignedJWT signJwt(JWTClaimsSet claimsSet) {
-        ECKey ecJWK = (ECKey) getJwkSet().getKeys().get(0);
-        JWSSigner signer = new ECDSASigner(ecJWK);
-        SignedJWT signedJWT = new SignedJWT(
-                new JWSHeader.Builder(JWSAlgorithm.ES256)
-                        .keyID(ecJWK.getKeyID())
-                        .type(JOSEObjectType.JWT)
-                        .build(),
-                claimsSet);
-        signedJWT.sign(signer);
+        KeyRing ring = getKeyRing();
+        SignedJWT signedJWT = new SignedJWT(ring.getSigningHeader(), claimsSet);
+        signedJWT.sign(ring.getSigner());
         return signedJWT;
     }
 
     /**
-     * If JWKSet exists in cache and is not expired, return it.
-     * Otherwise, handle expired keys if required and return new JWKSet
+     * Returns the public and private keys of our published key generations
      *
      * @return JWKSet of current keys
      */
-    @SneakyThrows
     public JWKSet getJwkSet() {
-        // if there is a valid JWKSet in the cache, return it
-        if (jwkSetCache.get() != null && !jwkSetCache.isExpired()) {
-            return jwkSetCache.get();
+        oauthMetrics.getJwkSetRequests().increment();
+        return getKeyRing().getJwkSet();
+    }
+
+    /**
+     * Returns the current KeyRing, this never blocks - rotation happens in the background and swaps the ring
+     *
+     * @return KeyRing of current keys
+     */
+    public KeyRing getKeyRing() {
+        return keyRing;
+    }
+
+    /**
+     * Runs in the background on every node, but only the node holding the cluster lock creates the next key
+     * generation when it is due. It publishes the generations to the cluster and every node (including itself)
+     * swaps in a new KeyRing from them. Nodes also swap once the next key is ready to sign.
+     */
+    @Scheduled(fixedDelayString = "${keys.refresh-interval-ms:60000}",
+            initialDelayString = "${keys.refresh-interval-ms:60000}")
+    public void refreshKeys() {
+        if (!clusterGenerations.tryLock(GENERATIONS)) {
+            // another node is rotating, its keys reach us through the entry listener
+            updateSigner();
+            return;
+        }
+        try {
+            rotate();
+        } finally {
+            clusterGenerations.unlock(GENERATIONS);
         }
-        // if the cache is empty or expired - pull keys from database
-        List<JWK> jwkList = getAllJwks();
-        // check for expired jwks and rotate if necessary
-        JWKSet jwkSet = rotateJwks(jwkList);
-        // put new JWKSet in cache and return
-        jwkSetCache.put(jwkSet);
-        return jwkSet;
     }
 
     /**
-     * Retrieves all keys from the database.
+     * Rotates keys if due and publishes the result, only called while holding the cluster lock
+     */
+    private void rotate() {
+        rotationLock.lock();
+        try {
+            KeyGenerations published = clusterGenerations.get(GENERATIONS);
+            if (published != null && published.getVersion() > appliedVersion) {
+                generations = toJwkEntities(published);
+                appliedVersion = published.getVersion();
+            }
+            if (generations == null) {
+                // first node of the cluster to start, the only time the table is read
+                generations = getAllJwks();
+            }
+            long now = System.currentTimeMillis();
+            List<JwkEntity> rotated = rotateJwks(generations, now);
+            boolean changed = !rotated.equals(generations);
+            generations = rotated;
+            if (changed || published == null) {
+                appliedVersion++;
+                clusterGenerations.set(GENERATIONS, toKeyGenerations(generations, appliedVersion));
+            }
+            swapKeyRing(changed, now);
+        } finally {
+            rotationLock.unlock();
+        }
+    }
+
+    /**
+     * Swaps in key generations published by the rotating node, unless we already have them
+     * @param published key generations
+     */
+    private void applyGenerations(KeyGenerations published) {
+        rotationLock.lock();
+        try {
+            if (published.getVersion() <= appliedVersion) {
+                return;
+            }
+            generations = toJwkEntities(published);
+            appliedVersion = published.getVersion();
+            swapKeyRing(true, System.currentTimeMillis());
+        } finally {
+            rotationLock.unlock();
+        }
+    }
+
+    private void updateSigner() {
+        rotationLock.lock();
+        try {
+            if (generations != null) {
+                swapKeyRing(false, System.currentTimeMillis());
+            }
+        } finally {
+            rotationLock.unlock();
+        }
+    }
+
+    private void swapKeyRing(boolean changed, long now) {
+        KeyRing current = keyRing;
+        // only swap if the published keys or the signer changed
+        if (current == null || changed ||
+                !current.getSigningKey().getKeyID().equals(selectSigningKey(generations, now).getKid())) {
+            keyRing = buildKeyRing(generations, now);
+        }
+    }
+
+    /**
+     * Retrieves all keys from the database, newest generation first.
      *
      * @return List of keys
      */
-    public List<JWK> getAllJwks() {
-        List<JWK> jwkList = new ArrayList<>();
-        Iterable<JwkEntity> entries = jwkRepository.findAll();
-        entries.forEach(jwkEntity -> {
-            try {
-                jwkList.add(jwkEntity.toJwk());
-            } catch (IllegalArgumentException e) {
-                // something happened, just clear all stored keys and create a new one
+    public List<JwkEntity> getAllJwks() {
+        List<JwkEntity> entities = new ArrayList<>();
+        jwkRepository.findAll().forEach(entities::add);
+        for (JwkEntity jwkEntity : entities) {
+            if (jwkEntity.toJwk() == null) {
+                // something happened, just clear all stored keys and create new ones
                 clearAllJwks();
-                jwkList.clear();
-                e.printStackTrace();
+                return new ArrayList<>();
             }
-        });
-        if (jwkList.size() == 0) {
-            jwkList.add(createJwk());
         }
-        return jwkList;
+        // keys stored before rotation was scheduled have no creation time, those used id 0 for the newest key
+        entities.sort(Comparator.<JwkEntity>comparingLong(this::createdMillis).reversed()
+                .thenComparing(JwkEntity::getId));
+        return entities;
+    }
+
+    /**
+     * If the newest key is older than the rotation period (or we have no keys), create the next key generation
+     * and publish it ahead of use. Keys past the retained generations are removed.
+     * Changing keys.algorithm starts a new generation right away, older keys stay published for verification.
+     *
+     * @param jwkList to be rotated, newest generation first
+     * @param now     current time in millis
+     * @return key generations to be published, newest first
+     */
+    public List<JwkEntity> rotateJwks(List<JwkEntity> jwkList, long now) {
+        List<JwkEntity> rotated = new ArrayList<>(jwkList);
+        if (rotated.isEmpty()) {
+            // nothing to verify yet, so our first key can be used right away
+            rotated.add(oauthMetrics.getKeyRotation().record(() ->
+                    saveJwk(createJwk(), 0, now - TimeUnit.MINUTES.toMillis(publishAheadMinutes))));
+        } else if (createdMillis(rotated.get(0)) + TimeUnit.MINUTES.toMillis(rotationPeriodMinutes) <= now ||
+                !algorithm.equals(algorithmOf(rotated.get(0)))) {
+            int nextId = rotated.stream().mapToInt(JwkEntity::getId).max().orElse(-1) + 1;
+            rotated.add(0, oauthMetrics.getKeyRotation().record(() -> saveJwk(createJwk(), nextId, now)));
+        }
+
+        // keep every key still waiting to be used, plus the retained number of signing generations
+        int signers = 0;
+        Iterator<JwkEntity> iterator = rotated.iterator();
+        while (iterator.hasNext()) {
+            JwkEntity jwkEntity = iterator.next();
+            if (isActive(jwkEntity, now) && ++signers > Math.max(1, retainedGenerations)) {
+                jwkRepository.deleteById(jwkEntity.getId());
+                iterator.remove();
+            }
+        }
+        return rotated;
+    }
+
+    /**
+     * Builds a KeyRing publishing all key generations, signing with the newest key that has been
+     * published for long enough
+     *
+     * @param jwkList key generations, newest first
+     * @param now     current time in millis
+     * @return KeyRing
+     */
+    public KeyRing buildKeyRing(List<JwkEntity> jwkList, long now) {
+        List<JWK> published = new ArrayList<>();
+        JWK signingKey = null;
+        JwkEntity signer = selectSigningKey(jwkList, now);
+        for (JwkEntity jwkEntity : jwkList) {
+            JWK jwk = jwkEntity.toJwk();
+            published.add(jwk);
+            if (jwkEntity == signer) {
+                signingKey = jwk;
+            }
+        }
+        return new KeyRing(published, signingKey);
     }
 
     /**
-     * If cache has expired, create a new signer at index (0) and move old signer at (1)
+     * Picks the newest key that has been published long enough to sign with
      *
-     * @param jwkList to be rotated
-     * @return JWKSet containing new (or current) keypairs
+     * @param jwkList key generations, newest first
+     * @param now     current time in millis
+     * @return JwkEntity to sign with
      */
-    @Transactional
-    public JWKSet rotateJwks(List<JWK> jwkList) {
-        if (jwkSetCache.isExpired()) {
-            JwkEntity oldSigner = convertJwkToJwkEntity(jwkList.get(0));
-            oldSigner.setId(1);
-            jwkRepository.deleteAll();
-            jwkList.clear();
-            jwkList.add(createJwk());
-            jwkList.add(oldSigner.toJwk());
-            jwkRepository.save(oldSigner);
+    public JwkEntity selectSigningKey(List<JwkEntity> jwkList, long now) {
+        for (JwkEntity jwkEntity : jwkList) {
+            if (isActive(jwkEntity, now)) {
+                return jwkEntity;
+            }
         }
-        return new JWKSet(jwkList);
+        // no key has been published long enough, use the oldest one we have
+        return jwkList.get(jwkList.size() - 1);
     }
 
     /**
@@ -187,4 +376,49 @@ public class KeyService {
             return null;
         }
     }
+
+    private JwkEntity saveJwk(JWK jwk, int id, long created) {
+        JwkEntity jwkEntity = convertJwkToJwkEntity(jwk);
+        jwkEntity.setId(id);
+        jwkEntity.setCreated(created);
+        oauthMetrics.getKeyRotations().increment();
+        return jwkRepository.save(jwkEntity);
+    }
+
+    private KeyGenerations toKeyGenerations(List<JwkEntity> jwkList, long version) {
+        int[] ids = new int[jwkList.size()];
+        long[] created = new long[jwkList.size()];
+        String[] jwks = new String[jwkList.size()];
+        for (int i = 0; i < jwkList.size(); i++) {
+            ids[i] = jwkList.get(i).getId();
+            created[i] = createdMillis(jwkList.get(i));
+            jwks[i] = jwkList.get(i).toJwk().toJSONString();
+        }
+        return new KeyGenerations(version, ids, created, jwks);
+    }
+
+    @SneakyThrows
+    private List<JwkEntity> toJwkEntities(KeyGenerations published) {
+        List<JwkEntity> jwkList = new ArrayList<>();
+        for (int i = 0; i < published.getIds().length; i++) {
+            JwkEntity jwkEntity = convertJwkToJwkEntity(JWK.parse(published.getJwks()[i]));
+            jwkEntity.setId(published.getIds()[i]);
+            jwkEntity.setCreated(published.getCreated()[i]);
+            jwkList.add(jwkEntity);
+        }
+        return jwkList;
+    }
+
+    private String algorithmOf(JwkEntity jwkEntity) {
+        // keys stored without alg were all ES256
+        return jwkEntity.getAlg() == null ? JWSAlgorithm.ES256.getName() : jwkEntity.getAlg();
+    }
+
+    private boolean isActive(JwkEntity jwkEntity, long now) {
+        return createdMillis(jwkEntity) + TimeUnit.MINUTES.toMillis(publishAheadMinutes) <= now;
+    }
+
+    private long createdMillis(JwkEntity jwkEntity) {
+        return jwkEntity.getCreated() == null ? 0 : jwkEntity.getCreated();
+    }
 }
@@ -0,0 +1,146 @@
+package dev.jlarsen.authserverdemo.services;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.ExtendedMapEntry;
+import com.hazelcast.map.IMap;
+import dev.jlarsen.authserverdemo.exceptions.TokenException;
+import dev.jlarsen.authserverdemo.exceptions.TokenRequestError;
+import dev.jlarsen.authserverdemo.models.RefreshTokenRecord;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refresh tokens held in Hazelcast, keyed by the hash of the token and expiring on their own
+ * Tokens are single use: refreshing consumes the token and issues a new one in the same family.
+ * Presenting a token that was already used revokes its whole family.
+ */
+@Service
+public class RefreshTokenStore {
+
+    @Autowired
+    HazelcastInstance hazelcastInstance;
+
+    @Value("${tokens.refresh.ttl-seconds:2592000}")
+    long ttlSeconds;
+
+    // token hash -> record of the token, marked used once exchanged and kept until it would have expired
+    private IMap<String, RefreshTokenRecord> tokens;
+    // family id -> revocation time of families that may no longer be refreshed
+    private IMap<String, Long> revokedFamilies;
+
+    @PostConstruct
+    public void init() {
+        tokens = hazelcastInstance.getMap("refresh-tokens");
+        revokedFamilies = hazelcastInstance.getMap("refresh-token-families");
+    }
+
+    /**
+     * Issues a new refresh token
+     * @param clientId of client the token is issued to
+     * @param subject  username of User the client belongs to
+     * @param familyId of the token being rotated, or null to start a new family
+     * @return refresh token to be sent to the client
+     */
+    public String issue(String clientId, String subject, String familyId) {
+        String refreshToken = UUID.randomUUID().toString();
+        String family = familyId == null ? UUID.randomUUID().toString() : familyId;
+        long expiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttlSeconds);
+        tokens.set(TokenDigests.digest(refreshToken), new RefreshTokenRecord(clientId, subject, family, expiresAt),
+                ttlSeconds, TimeUnit.SECONDS);
+        return refreshToken;
+    }
+
+    /**
+     * Atomically consumes a refresh token, so it can only be exchanged once
+     * The record is marked used in the same entry processor that reads it, so of any number of concurrent
+     * requests with the same token exactly one gets it, and every other one sees it used and revokes the family.
+     * @param refreshToken sent by client
+     * @param clientId     of authenticated client presenting the token
+     * @return record of the consumed token
+     */
+    public RefreshTokenRecord consume(String refreshToken, String clientId) {
+        RefreshTokenRecord record = tokens.executeOnKey(TokenDigests.digest(refreshToken),
+                new ConsumeTokenProcessor(clientId));
+        if (record == null) {
+            throw new TokenException(TokenRequestError.INVALID_GRANT);
+        }
+        if (!record.getClientId().equals(clientId)) {
+            // another client's token, left as it was so its owner can still use it
+            throw new TokenException(TokenRequestError.INVALID_GRANT);
+        }
+        if (record.isUsed()) {
+            // this token was already exchanged, someone may have stolen it - stop the whole family
+            revokeFamily(record.getFamilyId());
+            throw new TokenException(TokenRequestError.INVALID_GRANT);
+        }
+        if (record.getExpiresAt() <= System.currentTimeMillis()
+                || revokedFamilies.containsKey(record.getFamilyId())) {
+            throw new TokenException(TokenRequestError.INVALID_GRANT);
+        }
+        return record;
+    }
+
+    /**
+     * Revokes a refresh token (RFC 7009) along with the rest of its family
+     * @param refreshToken to be revoked
+     * @param clientId     of authenticated client revoking the token
+     * @return false if the token is unknown or belongs to another client, in which case nothing was revoked
+     */
+    public boolean revoke(String refreshToken, String clientId) {
+        String key = TokenDigests.digest(refreshToken);
+        RefreshTokenRecord record = tokens.get(key);
+        if (record == null || record.isUsed() || !record.getClientId().equals(clientId)) {
+            return false;
+        }
+        tokens.delete(key);
+        revokeFamily(record.getFamilyId());
+        return true;
+    }
+
+    /**
+     * Stops every token in a family from being refreshed, until the newest of them would have expired
+     * @param familyId to be revoked
+     */
+    public void revokeFamily(String familyId) {
+        revokedFamilies.set(familyId, System.currentTimeMillis(), ttlSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Marks a token used, returning the record as it was before (so used is only false for the one caller
+     * that actually consumed it). The used record keeps the token's remaining lifetime.
+     * Another client's token is returned untouched, presenting it must not use it up for its owner.
+     */
+    static class ConsumeTokenProcessor implements EntryProcessor<String, RefreshTokenRecord, RefreshTokenRecord> {
+
+        private final String clientId;
+
+        ConsumeTokenProcessor(String clientId) {
+            this.clientId = clientId;
+        }
+
+        @Override
+        public RefreshTokenRecord process(Map.Entry<String, RefreshTokenRecord> entry) {
+            RefreshTokenRecord record = entry.getValue();
+            if (record == null || record.isUsed() || !record.getClientId().equals(clientId)) {
+                return record;
+            }
+            long remaining = record.getExpiresAt() - System.currentTimeMillis();
+            if (remaining <= 0) {
+                entry.setValue(null);
+                return record;
+            }
+            RefreshTokenRecord used = new RefreshTokenRecord(record.getClientId(), record.getSubject(),
+                    record.getFamilyId(), record.getExpiresAt());
+            used.setUsed(true);
+            ((ExtendedMapEntry<String, RefreshTokenRecord>) entry).setValue(used, remaining, TimeUnit.MILLISECONDS);
+            return record;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package dev.jlarsen.authserverdemo.services;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import com.hazelcast.map.listener.EntryAddedListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Revoked access tokens (by jti), shared by the cluster in the Hazelcast "revoked-tokens" map
+ * Each entry expires when the token itself would have. Every node keeps a Bloom filter of the revoked ids,
+ * fed by an entry listener, so checking a token that was never revoked (almost all of them) is a few
+ * bit lookups with no allocation and no trip to the cluster. The filter is rebuilt from the map now and then
+ * to forget tokens that have expired.
+ */
+@Service
+public class RevokedTokenStore {
+
+    @Autowired
+    HazelcastInstance hazelcastInstance;
+
+    // bits in the filter, rounded up to a power of two
+    @Value("${tokens.revocation.bloom-bits:1048576}")
+    int bloomBits;
+
+    @Value("${tokens.revocation.bloom-hashes:5}")
+    int bloomHashes;
+
+    // jti -> exp (epoch seconds) of revoked tokens
+    private IMap<String, Long> revokedTokens;
+
+    private volatile BloomFilter filter;
+    // filter being rebuilt, which also gets every id revoked in the meantime
+    private volatile BloomFilter pending;
+
+    @PostConstruct
+    public void init() {
+        revokedTokens = hazelcastInstance.getMap("revoked-tokens");
+        filter = new BloomFilter(bloomBits, bloomHashes);
+        revokedTokens.addEntryListener((EntryAddedListener<String, Long>) this::entryAdded, false);
+        rebuildFilter();
+    }
+
+    /**
+     * Revokes an access token, on every node, until it expires
+     * @param jti       id of token
+     * @param expiresAt exp of token, in epoch seconds
+     */
+    public void revoke(String jti, long expiresAt) {
+        long ttl = expiresAt - TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        if (jti == null || ttl <= 0) {
+            // already expired, nothing to revoke
+            return;
+        }
+        // add locally right away, the listener event for our own put comes later
+        add(jti);
+        revokedTokens.set(jti, expiresAt, ttl, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param jti id of token, null for tokens issued before we added the claim
+     * @return true if the token has been revoked
+     */
+    public boolean isRevoked(String jti) {
+        if (jti == null || !filter.mightContain(jti)) {
+            return false;
+        }
+        // the filter can't tell us for sure, only the map can
+        return revokedTokens.containsKey(jti);
+    }
+
+    /**
+     * Replaces the filter with one built from the ids still in the map, dropping bits of expired tokens
+     */
+    @Scheduled(fixedDelayString = "${tokens.revocation.rebuild-interval-ms:300000}",
+            initialDelayString = "${tokens.revocation.rebuild-interval-ms:300000}")
+    public void rebuildFilter() {
+        BloomFilter rebuilt = new BloomFilter(bloomBits, bloomHashes);
+        pending = rebuilt;
+        for (String jti : revokedTokens.keySet()) {
+            rebuilt.add(jti);
+        }
+        filter = rebuilt;
+        pending = null;
+    }
+
+    private void entryAdded(EntryEvent<String, Long> event) {
+        add(event.getKey());
+    }
+
+    private void add(String jti) {
+        filter.add(jti);
+        BloomFilter rebuilding = pending;
+        if (rebuilding != null) {
+            rebuilding.add(jti);
+        }
+    }
+
+    /**
+     * Fixed size Bloom filter over strings, bits are set atomically so adds never need a lock
+     */
+    static final class BloomFilter {
+
+        private final AtomicLongArray words;
+        private final long mask;
+        private final int hashes;
+
+        BloomFilter(int bits, int hashes) {
+            int size = Integer.highestOneBit(Math.max(64, bits - 1)) << 1;
+            this.words = new AtomicLongArray(size >>> 6);
+            this.mask = size - 1;
+            this.hashes = Math.max(1, hashes);
+        }
+
+        void add(String value) {
+            long h1 = hash(value);
+            long h2 = mix(h1) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = (h1 + i * h2) & mask;
+                int index = (int) (bit >>> 6);
+                long flag = 1L << bit;
+                long word;
+                do {
+                    word = words.get(index);
+                    if ((word & flag) != 0) {
+                        break;
+                    }
+                } while (!words.compareAndSet(index, word, word | flag));
+            }
+        }
+
+        boolean mightContain(String value) {
+            long h1 = hash(value);
+            long h2 = mix(h1) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = (h1 + i * h2) & mask;
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // 64 bit FNV-1a over the chars, then mixed so the low bits we mask on are well spread
+        private static long hash(String value) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < value.length(); i++) {
+                h ^= value.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            return mix(h);
+        }
+
+        // MurmurHash3 finalizer
+        private static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package dev.jlarsen.authserverdemo.services;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import com.hazelcast.map.listener.EntryAddedListener;
+import dev.jlarsen.authserverdemo.models.ScopeIdEntity;
+import dev.jlarsen.authserverdemo.repositories.ScopeIdRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server wide dictionary of scope names, each interned to a small int id
+ * Ids are handed out in order under a cluster lock, stored in the scope_id table and shared through the
+ * Hazelcast "scope-ids" map, so a scope has the same id on every node. The table is what the ids come from -
+ * the map is loaded from it on start and only ever gets ids already stored, so losing the map (a restart,
+ * lost members, split-brain) can't give an id to a different scope.
+ * A set of scopes is then a bitset (long[], bit id set for each scope), which makes checking requested scope
+ * against a client's a lookup and a bit test per scope, and gives a compact form for a scope claim (see toClaim).
+ * Only the scopes of registered clients are interned - scopes in requests are looked up, never added.
+ */
+@Service
+public class ScopeRegistry {
+
+    @Autowired
+    HazelcastInstance hazelcastInstance;
+
+    @Autowired
+    ScopeIdRepository scopeIdRepository;
+
+    // scope -> id, never removed or changed once set
+    private IMap<String, Integer> clusterIds;
+
+    // local copies, fed by an entry listener
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    // id -> scope
+    private volatile String[] names = new String[0];
+
+    // locked while a new id is handed out, never holds a value (scopes are space separated, so can't be this)
+    private static final String NEXT_ID = "next id";
+
+    @PostConstruct
+    public void init() {
+        clusterIds = hazelcastInstance.getMap("scope-ids");
+        clusterIds.addEntryListener((EntryAddedListener<String, Integer>) this::entryAdded, true);
+        // the map may be new (first node up) or have lost entries, refill it from the table
+        clusterIds.lock(NEXT_ID);
+        try {
+            for (ScopeIdEntity stored : scopeIdRepository.findAll()) {
+                clusterIds.putIfAbsent(stored.getScope(), stored.getScopeId());
+                add(stored.getScope(), stored.getScopeId());
+            }
+        } finally {
+            clusterIds.unlock(NEXT_ID);
+        }
+        for (Map.Entry<String, Integer> entry : clusterIds.entrySet()) {
+            add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Bitset of a client's scopes, interning any scope we haven't seen before
+     * @param scopes authorized scopes of a client
+     * @return bitset of scope ids
+     */
+    public long[] encode(Collection<String> scopes) {
+        int max = -1;
+        int[] scopeIds = new int[scopes.size()];
+        int i = 0;
+        for (String scope : scopes) {
+            scopeIds[i] = intern(scope);
+            max = Math.max(max, scopeIds[i++]);
+        }
+        long[] bits = new long[(max >> 6) + 1];
+        for (int id : scopeIds) {
+            bits[id >> 6] |= 1L << id;
+        }
+        return bits;
+    }
+
+    /**
+     * Checks requested scope against a client's, without copying or changing either
+     * @param authorized bitset of the client's scopes (from encode)
+     * @param requested  scope names of the request
+     * @return true if every requested scope is authorized
+     */
+    public boolean allows(long[] authorized, Collection<String> requested) {
+        for (String scope : requested) {
+            Integer id = ids.get(scope);
+            // a scope no client holds can't be authorized
+            if (id == null || (id >> 6) >= authorized.length || (authorized[id >> 6] & (1L << id)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param granted  bitset of scopes held (e.g. decoded from a token's claim)
+     * @param required bitset of scopes needed
+     * @return true if granted has every bit of required
+     */
+    public static boolean containsAll(long[] granted, long[] required) {
+        for (int i = 0; i < required.length; i++) {
+            long have = i < granted.length ? granted[i] : 0;
+            if ((required[i] & ~have) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param bits bitset of scope ids
+     * @return scope names, in id order
+     */
+    public List<String> decode(long[] bits) {
+        String[] known = names;
+        List<String> scopes = new ArrayList<>();
+        for (int i = 0; i < bits.length; i++) {
+            long word = bits[i];
+            while (word != 0) {
+                int id = (i << 6) + Long.numberOfTrailingZeros(word);
+                if (id < known.length && known[id] != null) {
+                    scopes.add(known[id]);
+                }
+                word &= word - 1;
+            }
+        }
+        return scopes;
+    }
+
+    /**
+     * Compact claim form of a bitset - base64url of its bytes (little endian, trailing zero bytes dropped),
+     * a few bytes even for clients with hundreds of scopes
+     * @param bits bitset of scope ids
+     * @return claim value
+     */
+    public static String toClaim(long[] bits) {
+        byte[] bytes = new byte[bits.length * 8];
+        int length = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (bits[i >> 3] >>> ((i & 7) << 3));
+            if (bytes[i] != 0) {
+                length = i + 1;
+            }
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(bytes, length));
+    }
+
+    /**
+     * @param claim value from toClaim
+     * @return bitset of scope ids
+     */
+    public static long[] fromClaim(String claim) {
+        byte[] bytes = Base64.getUrlDecoder().decode(claim);
+        long[] bits = new long[(bytes.length + 7) >> 3];
+        for (int i = 0; i < bytes.length; i++) {
+            bits[i >> 3] |= (bytes[i] & 0xffL) << ((i & 7) << 3);
+        }
+        return bits;
+    }
+
+    private int intern(String scope) {
+        Integer id = ids.get(scope);
+        if (id != null) {
+            return id;
+        }
+        clusterIds.lock(NEXT_ID);
+        try {
+            id = clusterIds.get(scope);
+            if (id == null) {
+                // stored, but the map lost it
+                id = scopeIdRepository.findById(scope).map(ScopeIdEntity::getScopeId).orElse(null);
+            }
+            if (id == null) {
+                // ids are only ever added under this lock, so the next one follows the highest stored
+                // (the unique id column stops two halves of a split cluster from storing the same one)
+                Integer max = scopeIdRepository.findMaxScopeId();
+                id = max == null ? 0 : max + 1;
+                scopeIdRepository.save(new ScopeIdEntity(scope, id));
+            }
+            clusterIds.set(scope, id);
+        } finally {
+            clusterIds.unlock(NEXT_ID);
+        }
+        add(scope, id);
+        return id;
+    }
+
+    private void entryAdded(EntryEvent<String, Integer> event) {
+        add(event.getKey(), event.getValue());
+    }
+
+    private synchronized void add(String scope, int id) {
+        // publish the name before the id, so anything that finds the id can decode it
+        String[] updated = Arrays.copyOf(names, Math.max(names.length, id + 1));
+        updated[id] = scope;
+        names = updated;
+        ids.put(scope, id);
+    }
+}
@@ -0,0 +1,32 @@
+package dev.jlarsen.authserverdemo.services;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * SHA-256 digests of tokens, used wherever we need to look a token up without holding on to the token itself
+ */
+final class TokenDigests {
+
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final Base64.Encoder base64Encoder = Base64.getUrlEncoder().withoutPadding();
+
+    private TokenDigests() {
+    }
+
+    /**
+     * @param token to be digested
+     * @return base64url encoded SHA-256 digest of the token
+     */
+    static String digest(String token) {
+        return base64Encoder.encodeToString(sha256.get().digest(token.getBytes(StandardCharsets.US_ASCII)));
+    }
+}
@@ -2,25 +2,27 @@ package dev.jlarsen.authserverdemo.services;
 
 import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWSObject;
-import com.nimbusds.jose.crypto.ECDSAVerifier;
-import com.nimbusds.jose.jwk.ECKey;
-import com.nimbusds.jwt.JWTClaimsSet;
-import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.jose.JWSVerifier;
 import dev.jlarsen.authserverdemo.exceptions.TokenException;
 import dev.jlarsen.authserverdemo.exceptions.TokenRequestError;
+import dev.jlarsen.authserverdemo.metrics.OAuthMetrics;
 import dev.jlarsen.authserverdemo.models.AuthClient;
+import dev.jlarsen.authserverdemo.models.AuthCode;
+import dev.jlarsen.authserverdemo.models.IssuedToken;
+import dev.jlarsen.authserverdemo.models.RefreshTokenRecord;
 import dev.jlarsen.authserverdemo.models.TokenRequest;
 import dev.jlarsen.authserverdemo.models.UserEntity;
 import dev.jlarsen.authserverdemo.models.UserPrincipal;
-import dev.jlarsen.authserverdemo.repositories.AuthClientRepository;
-import lombok.SneakyThrows;
+import dev.jlarsen.authserverdemo.models.VerifiedToken;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.Cache;
-import org.springframework.cache.CacheManager;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.stereotype.Service;
 
 import java.security.Principal;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
@@ -35,117 +37,203 @@ public class TokenService {
     AuthService authService;
 
     @Autowired
-    CacheManager cacheManager;
+    AuthCodeService authCodeService;
 
     @Autowired
-    AuthClientRepository authClientRepository;
+    VerifiedTokenCache verifiedTokenCache;
+
+    @Autowired
+    OAuthMetrics oauthMetrics;
+
+    @Autowired
+    AccessTokenReuseCache accessTokenReuseCache;
+
+    @Autowired
+    RefreshTokenStore refreshTokenStore;
+
+    @Autowired
+    AccessTokenMinter accessTokenMinter;
+
+    @Autowired
+    RevokedTokenStore revokedTokenStore;
+
+    @Autowired
+    AuthClientRegistry authClientRegistry;
+
+    // must match the format AuthService issues codes in, see codes.format
+    @Value("${codes.format:jws}")
+    String codeFormat;
+
+    private static final long ACCESS_TOKEN_LIFETIME_SECONDS = 21600;
+
+    private static final List<GrantedAuthority> CLIENT_AUTHORITIES =
+            Collections.singletonList(new SimpleGrantedAuthority("ROLE_CLIENT"));
 
     /**
      * Verifies client token requests, returns error to client if verification fails
+     * The code is consumed as part of verification, so it can only ever be exchanged once
      *
      * @param authentication authenticated client requesting token
      * @param tokenRequest   to be verified
      */
-    @SneakyThrows
     public void verifyClientTokenRequest(Authentication authentication, TokenRequest tokenRequest) {
-        JWSObject jwsObject = parseCode(tokenRequest.getCode());
-        Map<String, Object> payload = jwsObject.getPayload().toJSONObject();
-
-        // make sure redirect_uri still matches
-        if (!payload.get("redirect_uri").equals(tokenRequest.getRedirectUri())) {
+        // we currently only support the authorization_code grant type
+        if (!"authorization_code".equals(tokenRequest.getGrantType())) {
+            throw new TokenException(TokenRequestError.UNSUPPORTED_GRANT_TYPE);
+        }
+        if (tokenRequest.getCode() == null) {
             throw new TokenException(TokenRequestError.INVALID_REQUEST);
         }
 
-        // pull cached codes
-        Cache codes = cacheManager.getCache("codes");
-        if (codes == null) {
-            throw new TokenException(TokenRequestError.INVALID_GRANT);
+        String codeId;
+        if (codeFormat.equals("opaque")) {
+            // opaque code, the code is its own code_id and everything else is in the store
+            codeId = tokenRequest.getCode();
         } else {
-            // make sure current client requesting token is same who requested code
-            if (codes.get(authentication.getName()) == null) {
-                throw new TokenException(TokenRequestError.INVALID_GRANT);
-            } else {
-                // make sure code is not expired
-                Instant expired = Instant.parse((CharSequence) payload.get("expires"));
-                if (expired.isBefore(Instant.now())) {
-                    throw new TokenException(TokenRequestError.INVALID_GRANT);
-                }
-            }
+            // only ever a signed code here - the code_id alone is readable in the code's payload,
+            // so accepting it would skip the signature check
+            // verify auth code signature against the keys in our JWKSet before touching the stored code
+            JWSObject jwsObject = parseCode(tokenRequest.getCode());
+            verifySignature(jwsObject);
+            codeId = (String) jwsObject.getPayload().toJSONObject().get("code_id");
         }
 
-        // we currently only support the authorization_code grant type
-        if (!tokenRequest.getGrantType().equals("authorization_code")) {
-            throw new TokenException(TokenRequestError.UNSUPPORTED_GRANT_TYPE);
+        // remove the code from the store, only if current client requesting token is same who requested code
+        AuthCode authCode = authCodeService.consume(codeId, authentication.getName());
+        if (authCode == null) {
+            throw new TokenException(TokenRequestError.INVALID_GRANT);
         }
 
-        // now verify auth code signature against the keys in our JWKSet
-        verifySignature(jwsObject);
+        // make sure code is not expired
+        if (authCode.getExpiresAt() < System.currentTimeMillis()) {
+            throw new TokenException(TokenRequestError.INVALID_GRANT);
+        }
 
-        //everything looks good, remove used code from cache
-        codes.evict(authentication.getName());
+        // make sure redirect_uri still matches
+        if (!authCode.getRedirectUri().equals(tokenRequest.getRedirectUri())) {
+            throw new TokenException(TokenRequestError.INVALID_REQUEST);
+        }
     }
 
     /**
-     * Pulls an authenticated client from the database and compares it's refresh token
+     * Consumes the refresh token presented by an authenticated client, it can't be used again
      * @param refreshToken sent by client
      * @param principal client requesting new access token
+     * @return record of the consumed token, containing the family the next token belongs to
      */
-    public void verifyRefreshToken(String refreshToken, Principal principal) {
-        AuthClient client = authService.getClient(principal.getName());
-        if (client == null) {
-            // couldn't find client?  we just authenticated them!
-            throw new TokenException(TokenRequestError.INVALID_CLIENT);
-        }
-        // got the client, but refresh token does not match
-        if (!client.getRefreshToken().equals(refreshToken)) {
-            throw new TokenException(TokenRequestError.INVALID_GRANT);
+    public RefreshTokenRecord verifyRefreshToken(String refreshToken, Principal principal) {
+        if (refreshToken == null) {
+            throw new TokenException(TokenRequestError.INVALID_REQUEST);
         }
+        return refreshTokenStore.consume(refreshToken, principal.getName());
     }
 
     /**
-     * Verifies the signature of a JWS against keys in the servers JWKSet
+     * Verifies the signature of a JWS against the key in the servers KeyRing matching its key id
      * @param jwsObject to be verified
      */
     public void verifySignature(JWSObject jwsObject) {
-        boolean result = keyService.getJwkSet().getKeys().stream().anyMatch(jwk -> {
-            try {
-                return jwsObject.verify(new ECDSAVerifier((ECKey) jwk));
-            } catch (JOSEException e) {
-                e.printStackTrace();
-            }
-            return false;
-        });
+        oauthMetrics.getTokenVerify().record(() -> checkSignature(jwsObject));
+    }
+
+    private void checkSignature(JWSObject jwsObject) {
+        JWSVerifier verifier = keyService.getKeyRing().getVerifier(jwsObject.getHeader().getKeyID());
+        // the code was not signed by any of the keys in our JWKSet, or asks to use a key with another algorithm
+        if (verifier == null || !verifier.supportedJWSAlgorithms().contains(jwsObject.getHeader().getAlgorithm())) {
+            throw new TokenException(TokenRequestError.INVALID_GRANT);
+        }
+        boolean result;
+        try {
+            result = jwsObject.verify(verifier);
+        } catch (JOSEException e) {
+            // a malformed signature, same as for access tokens it's not worth logging
+            result = false;
+        }
         if (!result) {
-            // the code signature couldn't be verified against any of the keys in our JWKSet
+            // the code signature couldn't be verified against the key it claims to be signed with
+            throw new TokenException(TokenRequestError.INVALID_GRANT);
+        }
+    }
+
+    private void verifySignature(CompactJws jws) {
+        oauthMetrics.getTokenVerify().record(() -> checkSignature(jws));
+    }
+
+    private void checkSignature(CompactJws jws) {
+        if (!verifies(keyService.getKeyRing(), jws)) {
             throw new TokenException(TokenRequestError.INVALID_GRANT);
         }
     }
 
+    /**
+     * Verifies the signing input straight from the token, no JWSObject needed
+     * @return true if the token is signed by the key its kid names, using that key's algorithm
+     */
+    static boolean verifies(KeyRing ring, CompactJws jws) {
+        JWSVerifier verifier = ring.getVerifier(jws.getKeyId());
+        // the token doesn't get to choose how a key is used, its alg must be the one the key is for
+        if (verifier == null || !verifier.supportedJWSAlgorithms().contains(jws.getHeader().getAlgorithm())) {
+            return false;
+        }
+        try {
+            return verifier.verify(jws.getHeader(), jws.getSigningInput(), jws.getSignature());
+        } catch (JOSEException e) {
+            // a malformed signature, anyone can send one so it's not worth logging
+            return false;
+        }
+    }
+
     /**
      * Parses and verifies (Bearer) access tokens
      *
      * @param token to be verified
      * @return UserPrincipal to be authenticated as User who issued token
      */
-    @SneakyThrows
     public UserPrincipal parseToken(String token) {
+        return verifyToken(token).getPrincipal();
+    }
 
-        JWSObject jwsObject = parseCode(token);
+    /**
+     * Parses and verifies (Bearer) access tokens, skipping all crypto if the token was verified before
+     *
+     * @param token to be verified
+     * @return VerifiedToken containing principal and authorities to be authenticated
+     */
+    public VerifiedToken verifyToken(String token) {
+        return oauthMetrics.getTokenParse().record(() -> checkToken(token));
+    }
 
-        // first verify the token signature
-        verifySignature(jwsObject);
+    private VerifiedToken checkToken(String token) {
+        VerifiedToken verified = verifiedTokenCache.get(token);
+        if (verified != null) {
+            // a cached token may have been revoked since it was verified
+            if (revokedTokenStore.isRevoked(verified.getJti())) {
+                verifiedTokenCache.remove(token);
+                throw new TokenException(TokenRequestError.INVALID_GRANT);
+            }
+            return verified;
+        }
 
-        // signature matches, get payload for exp and sub claims
-        Map<String, Object> payload = jwsObject.getPayload().toJSONObject();
+        // only reads the header and claims we need, rejecting malformed tokens before any crypto
+        CompactJws jws = CompactJws.parse(token);
+
+        // first verify the token signature
+        verifySignature(jws);
 
         // if token has expired throw exception
-        Instant expired = Instant.ofEpochSecond((Long) payload.get("exp"));
+        Instant expired = Instant.ofEpochSecond(jws.getExpiresAt());
         if (expired.isBefore(Instant.now())) {
             throw new TokenException(TokenRequestError.INVALID_GRANT);
         }
 
-        String userEmail = payload.get("sub").toString();
-        return new UserPrincipal(userEmail);
+        if (revokedTokenStore.isRevoked(jws.getJti())) {
+            throw new TokenException(TokenRequestError.INVALID_GRANT);
+        }
+
+        verified = new VerifiedToken(new UserPrincipal(jws.getSubject()), jws.getClientId(), jws.getJti(),
+                CLIENT_AUTHORITIES, expired);
+        verifiedTokenCache.put(token, verified);
+        return verified;
     }
 
     /**
@@ -158,17 +246,110 @@ public class TokenService {
         String clientId = authentication.getName();
         AuthClient authClient = authService.getClient(clientId);
         UserEntity user = authClient.getUser();
+        return createTokenResponse(clientId, user.getEmail(), null);
+    }
 
-        String refreshToken = UUID.randomUUID().toString();
+    /**
+     * Creates map to be sent as JSON object response to requesting client including access and refresh tokens
+     *
+     * @param clientId of client token will be issued to
+     * @param subject  username of User the client belongs to
+     * @param familyId of the refresh token being rotated, or null for a new family
+     * @return response
+     */
+    public Map<String, Object> createTokenResponse(String clientId, String subject, String familyId) {
         Map<String, Object> map = new HashMap<>();
-        map.put("access_token", createNewAccessToken(clientId, user.getEmail()));
+        map.put("access_token", createNewAccessToken(clientId, subject));
         map.put("token_type", "bearer");
-        map.put("expires_in", "21600");
-        map.put("refresh_token", refreshToken);
-        applyRefreshTokenToClient(clientId, refreshToken);
+        map.put("expires_in", String.valueOf(ACCESS_TOKEN_LIFETIME_SECONDS));
+        map.put("refresh_token", refreshTokenStore.issue(clientId, subject, familyId));
         return map;
     }
 
+    /**
+     * Verifies a client_credentials request and creates the response, reusing a still valid token
+     * previously issued for the same client and scope if possible.  No refresh token is issued for this grant.
+     *
+     * @param authentication client token will be issued to
+     * @param scope          requested scope (space separated), or null for all scope the client is authorized for
+     * @return response
+     */
+    public Map<String, Object> createClientCredentialsResponse(Authentication authentication, String scope) {
+        String clientId = authentication.getName();
+        AuthClient authClient = authService.getClient(clientId);
+        if (authClient == null) {
+            throw new TokenException(TokenRequestError.INVALID_CLIENT);
+        }
+        if (authClient.getGrants() == null || !authClient.getGrants().contains("client_credentials")) {
+            throw new TokenException(TokenRequestError.UNAUTHORIZED_CLIENT);
+        }
+
+        // normalize scope so the same set requested in any order shares a cached token
+        Set<String> requestedScope = new TreeSet<>();
+        if (scope == null || scope.trim().isEmpty()) {
+            // a client without scope gets a token without any
+            if (authClient.getScope() != null) {
+                requestedScope.addAll(authClient.getScope());
+            }
+        } else {
+            requestedScope.addAll(Arrays.asList(scope.trim().split(" +")));
+            if (!authClientRegistry.allowsScope(clientId, requestedScope)) {
+                throw new TokenException(TokenRequestError.INVALID_SCOPE);
+            }
+        }
+        String grantedScope = String.join(" ", requestedScope);
+
+        IssuedToken issued = accessTokenReuseCache.get(clientId, grantedScope);
+        if (issued == null || revokedTokenStore.isRevoked(issued.getJti())) {
+            issued = createNewAccessToken(clientId, clientId, grantedScope);
+            accessTokenReuseCache.put(clientId, grantedScope, issued);
+        }
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("access_token", issued.getToken());
+        map.put("token_type", "bearer");
+        map.put("expires_in", String.valueOf(Duration.between(Instant.now(), issued.getExpiresAt()).getSeconds()));
+        map.put("scope", grantedScope);
+        return map;
+    }
+
+    /**
+     * Revokes an access or refresh token (RFC 7009) presented by the client it was issued to
+     * Unknown, invalid or expired tokens, and tokens of other clients, are silently ignored -
+     * the client gets the same response either way
+     *
+     * @param authentication client revoking the token
+     * @param token          to be revoked
+     * @param tokenTypeHint  access_token or refresh_token, or null if the client didn't say (not needed)
+     */
+    public void revokeToken(Authentication authentication, String token, String tokenTypeHint) {
+        if (token == null) {
+            throw new TokenException(TokenRequestError.INVALID_REQUEST);
+        }
+        String clientId = authentication.getName();
+        // our refresh tokens are opaque and access tokens are JWTs, so the token tells us its type
+        // better than the hint could
+        if (token.indexOf('.') < 0) {
+            refreshTokenStore.revoke(token, clientId);
+            return;
+        }
+
+        CompactJws jws;
+        try {
+            jws = CompactJws.parse(token);
+            verifySignature(jws);
+        } catch (TokenException e) {
+            // not one of our tokens, nothing to revoke
+            return;
+        }
+        if (!clientId.equals(jws.getClientId())) {
+            return;
+        }
+        revokedTokenStore.revoke(jws.getJti(), jws.getExpiresAt());
+        verifiedTokenCache.remove(token);
+        accessTokenReuseCache.evict(clientId);
+    }
+
     /**
      * Compiles the required claims then stores them as payload in our self-signed access token
      *
@@ -177,20 +358,27 @@ public class TokenService {
      * @return access token (as a serialized self-signed JWT)
      */
     public String createNewAccessToken(String clientId, String email) {
+        return createNewAccessToken(clientId, email, null).getToken();
+    }
 
-        JWTClaimsSet claimsSet = new JWTClaimsSet.Builder()
-                .subject(email)
-                .issuer("http://auth-server:8081/oauth2")
-                .expirationTime(Date.from(Instant.now().plus(6, ChronoUnit.HOURS)))
-                .audience("http://localhost:8080")
-                .issueTime(Date.from(Instant.now()))
-                .claim("cid", clientId)
-                .claim("accountNo", 5000)
-                .build();
+    /**
+     * Compiles the required claims then stores them as payload in our self-signed access token
+     *
+     * @param clientId of client token will be issued to
+     * @param subject  username of User the client belongs to, or the client itself for client_credentials
+     * @param scope    granted scope (space separated), or null to leave out the scope claim
+     * @return access token (as a serialized self-signed JWT) and its expiry
+     */
+    public IssuedToken createNewAccessToken(String clientId, String subject, String scope) {
+        return oauthMetrics.getTokenIssue().record(() -> mintAccessToken(clientId, subject, scope));
+    }
 
+    private IssuedToken mintAccessToken(String clientId, String subject, String scope) {
+        // JWT dates only carry whole seconds
+        Instant issuedAt = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        Instant expiresAt = issuedAt.plusSeconds(ACCESS_TOKEN_LIFETIME_SECONDS);
         // sign the token with our current signing keypair
-        SignedJWT signedJWT = keyService.signJwt(claimsSet);
-        return signedJWT.serialize();
+        return accessTokenMinter.mint(clientId, subject, scope, issuedAt, expiresAt);
     }
 
     /**
@@ -205,23 +393,9 @@ public class TokenService {
             // decode our self-signed auth code
             jwsObject = JWSObject.parse(code);
         } catch (java.text.ParseException e) {
-            throw new TokenException(TokenRequestError.SERVER_ERROR);
+            // not a code we issued
+            throw new TokenException(TokenRequestError.INVALID_GRANT);
         }
         return jwsObject;
     }
-
-    /**
-     * Attaches refreshToken to AuthClient
-     *
-     * @param clientId     of AuthClient
-     * @param refreshToken to be attached
-     */
-    public void applyRefreshTokenToClient(String clientId, String refreshToken) {
-        Optional<AuthClient> optionalClient = authClientRepository.findById(clientId);
-        if (optionalClient.isPresent()) {
-            AuthClient client = optionalClient.get();
-            client.setRefreshToken(refreshToken);
-            authClientRepository.save(client);
-        }
-    }
 }
@@ -0,0 +1,111 @@
+package dev.jlarsen.authserverdemo.services;
+
+import dev.jlarsen.authserverdemo.models.VerifiedToken;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in cache of already verified access tokens, so repeat Bearer requests skip parsing and signature checks
+ * Entries are keyed by a SHA-256 digest of the token (we never hold the token itself) and expire with the token
+ */
+@Service
+public class VerifiedTokenCache {
+
+    @Value("${tokens.verified-cache.enabled:false}")
+    boolean enabled;
+
+    @Value("${tokens.verified-cache.max-size:10000}")
+    int maxSize;
+
+    private final Map<String, VerifiedToken> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Looks up a previously verified token
+     * @param token serialized access token
+     * @return verified token, or null if cache is disabled, token is unknown or it has expired
+     */
+    public VerifiedToken get(String token) {
+        if (!enabled) {
+            return null;
+        }
+        String key = TokenDigests.digest(token);
+        VerifiedToken verified = entries.get(key);
+        if (verified != null && verified.getExpiresAt().isBefore(Instant.now())) {
+            entries.remove(key, verified);
+            verified = null;
+        }
+        if (verified == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return verified;
+    }
+
+    /**
+     * Stores a token that has just passed verification
+     * @param token serialized access token
+     * @param verified result of verification, expiring with the token
+     */
+    public void put(String token, VerifiedToken verified) {
+        if (!enabled) {
+            return;
+        }
+        if (entries.size() >= maxSize) {
+            evict();
+        }
+        entries.put(TokenDigests.digest(token), verified);
+    }
+
+    /**
+     * Removes a token from the cache, if present
+     * @param token serialized access token
+     */
+    public void remove(String token) {
+        entries.remove(TokenDigests.digest(token));
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Drops expired entries, then if still over 90% of capacity drops entries in iteration order
+     * Only one thread evicts at a time, others carry on and may briefly overshoot the cap
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Instant now = Instant.now();
+            entries.values().removeIf(verified -> verified.getExpiresAt().isBefore(now));
+            int target = maxSize - maxSize / 10;
+            Iterator<String> keys = entries.keySet().iterator();
+            while (entries.size() >= target && keys.hasNext()) {
+                keys.next();
+                keys.remove();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+}
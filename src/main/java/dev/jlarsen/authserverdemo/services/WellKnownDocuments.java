@@ -0,0 +1,129 @@
+package dev.jlarsen.authserverdemo.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nimbusds.jose.jwk.JWKSet;
+import lombok.SneakyThrows;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pre-serialized /.well-known/ documents with strong ETags
+ * The JWKS document is only rebuilt when the key set changes, the configuration document is built once
+ */
+@Service
+public class WellKnownDocuments {
+
+    @Autowired
+    KeyService keyService;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    // a new key is published this long before it signs, so caching the JWKS for half of it is always safe
+    @Value("${keys.publish-ahead-minutes:1440}")
+    long publishAheadMinutes;
+
+    @Value("${well-known.configuration-max-age-seconds:3600}")
+    long configurationMaxAgeSeconds;
+
+    private volatile Document jwks;
+    private Document configuration;
+
+    @PostConstruct
+    public void init() {
+        configuration = new Document(null, serialize(createConfiguration()), configurationMaxAgeSeconds);
+    }
+
+    /**
+     * @return public JWKSet document, rebuilt only if the key set has rotated since the last call
+     */
+    public Document getJwks() {
+        JWKSet jwkSet = keyService.getJwkSet();
+        Document current = jwks;
+        if (current == null || current.source != jwkSet) {
+            current = new Document(jwkSet, serialize(jwkSet.toJSONObject(true)),
+                    TimeUnit.MINUTES.toSeconds(publishAheadMinutes) / 2);
+            jwks = current;
+        }
+        return current;
+    }
+
+    /**
+     * @return provider configuration document
+     */
+    public Document getConfiguration() {
+        return configuration;
+    }
+
+    private Map<String, Object> createConfiguration() {
+        // todo - store this data somewhere else
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("issuer", "http://auth-server:8081/oauth2");
+        map.put("authorization_endpoint", "http://auth-server:8081/oauth2/authorize");
+        map.put("token_endpoint", "http://auth-server:8081/oauth2/token");
+        map.put("jwks_uri", "http://auth-server:8081/oauth2/.well-known/jwks.json");
+        map.put("userinfo_endpoint", "http://auth-server:8081/oauth2/userinfo");
+        map.put("revocation_endpoint", "http://auth-server:8081/oauth2/revoke");
+        map.put("revocation_endpoint_auth_methods_supported", Collections.singletonList("client_secret_basic"));
+        map.put("response_types_supported", Arrays.asList("code", "token"));
+        map.put("grant_types_supported", Arrays.asList("authorization_code", "refresh_token", "client_credentials"));
+        map.put("scopes_supported", Arrays.asList("read:transactions", "test"));
+        map.put("claims_supported", Arrays.asList("accountNo", "test"));
+        map.put("subject_types_supported", Collections.singletonList("public"));
+        map.put("id_token_signing_alg_values_supported", Arrays.asList("RS256", "ES256", "EdDSA"));
+        map.put("token_endpoint_auth_signing_alg_values_supported", Arrays.asList("RS256", "ES256"));
+        return map;
+    }
+
+    @SneakyThrows
+    private byte[] serialize(Map<String, Object> map) {
+        return objectMapper.writeValueAsBytes(map);
+    }
+
+    /**
+     * A serialized JSON document, its strong ETag and how long clients may cache it
+     */
+    public static class Document {
+
+        private final Object source;
+        private final byte[] body;
+        private final String etag;
+        private final long maxAgeSeconds;
+
+        @SneakyThrows
+        Document(Object source, byte[] body, long maxAgeSeconds) {
+            this.source = source;
+            this.body = body;
+            this.etag = "\"" + Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(MessageDigest.getInstance("SHA-256").digest(body)) + "\"";
+            this.maxAgeSeconds = maxAgeSeconds;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public long getMaxAgeSeconds() {
+            return maxAgeSeconds;
+        }
+
+        /**
+         * @param ifNoneMatch value of the If-None-Match request header, may be null
+         * @return true if the client already has this exact document
+         */
+        public boolean matches(String ifNoneMatch) {
+            return ifNoneMatch != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(etag));
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package dev.jlarsen.authserverdemo;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.nimbusds.jose.JWSObject;
+import dev.jlarsen.authserverdemo.exceptions.TokenException;
+import dev.jlarsen.authserverdemo.models.CodeRequest;
+import dev.jlarsen.authserverdemo.models.KeyGenerations;
+import dev.jlarsen.authserverdemo.models.TokenRequest;
+import dev.jlarsen.authserverdemo.services.AuthService;
+import dev.jlarsen.authserverdemo.services.KeyService;
+import dev.jlarsen.authserverdemo.services.TokenService;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Two auth server nodes in one JVM, sharing an in-memory database and clustered through Hazelcast,
+ * checking that a code issued on one node can be exchanged (once) on the other, and that keys rotated on
+ * one node reach the other
+ */
+class ClusterCodeExchangeTests {
+
+	private static final String CLIENT_ID = "test-client";
+	private static final String USER_EMAIL = "test@email.com";
+	private static final String REDIRECT_URI = "http://localhost:8080/login/oauth2/code/auth-client";
+
+	private static ConfigurableApplicationContext nodeA;
+	private static ConfigurableApplicationContext nodeB;
+
+	@BeforeAll
+	static void startCluster() {
+		// a cluster name of our own, so we never join anything else running on this machine
+		String clusterName = "cluster-test-" + UUID.randomUUID();
+		nodeA = startNode(clusterName);
+		nodeB = startNode(clusterName);
+	}
+
+	@AfterAll
+	static void stopCluster() {
+		if (nodeB != null) {
+			nodeB.close();
+		}
+		if (nodeA != null) {
+			nodeA.close();
+		}
+	}
+
+	private static ConfigurableApplicationContext startNode(String clusterName) {
+		return new SpringApplicationBuilder(AuthServerDemoApplication.class)
+				.web(WebApplicationType.NONE)
+				.profiles("h2")
+				.properties(
+						"spring.datasource.url=jdbc:h2:mem:cluster_test;DB_CLOSE_DELAY=-1",
+						// the second node must not drop the tables the first one created
+						"spring.jpa.hibernate.ddl-auto=update",
+						// signed codes (the default), so the code exchange also checks keys are shared
+						"codes.format=jws",
+						// rotations are only forced by the test, and a new key signs right away
+						"keys.refresh-interval-ms=86400000",
+						"keys.publish-ahead-minutes=0",
+						"hazelcast.cluster-name=" + clusterName,
+						"hazelcast.port=5801",
+						"hazelcast.members=127.0.0.1:5801,127.0.0.1:5802")
+				.run();
+	}
+
+	@Test
+	void nodesFormOneCluster() {
+		assertEquals(2, nodeA.getBean(HazelcastInstance.class).getCluster().getMembers().size());
+		assertEquals(2, nodeB.getBean(HazelcastInstance.class).getCluster().getMembers().size());
+	}
+
+	@Test
+	void codeIssuedOnOneNodeIsExchangedOnAnother() {
+		String code = nodeA.getBean(AuthService.class).getAuthCode(codeRequest(), user());
+
+		TokenService tokenService = nodeB.getBean(TokenService.class);
+		tokenService.verifyClientTokenRequest(client(), tokenRequest(code));
+		Map<String, Object> response = tokenService.createTokenResponse(client());
+
+		assertNotNull(response.get("access_token"));
+		assertNotNull(response.get("refresh_token"));
+	}
+
+	@Test
+	void codeCanOnlyBeExchangedOnce() {
+		String code = nodeA.getBean(AuthService.class).getAuthCode(codeRequest(), user());
+
+		nodeB.getBean(TokenService.class).verifyClientTokenRequest(client(), tokenRequest(code));
+
+		assertThrows(TokenException.class, () ->
+				nodeA.getBean(TokenService.class).verifyClientTokenRequest(client(), tokenRequest(code)));
+	}
+
+	@Test
+	void keyRotatedOnOneNodeIsUsedByBoth() throws Exception {
+		KeyService keysA = nodeA.getBean(KeyService.class);
+		KeyService keysB = nodeB.getBean(KeyService.class);
+		String oldKid = keysA.getKeyRing().getSigningKey().getKeyID();
+		assertEquals(oldKid, keysB.getKeyRing().getSigningKey().getKeyID());
+		long oldVersion = generations().getVersion();
+		String oldToken = nodeA.getBean(TokenService.class).createNewAccessToken(CLIENT_ID, USER_EMAIL);
+
+		// make the next generation due on node A only, then run its scheduled refresh
+		ReflectionTestUtils.setField(keysA, "rotationPeriodMinutes", 0L);
+		try {
+			keysA.refreshKeys();
+		} finally {
+			ReflectionTestUtils.setField(keysA, "rotationPeriodMinutes", 20160L);
+		}
+		String newKid = keysA.getKeyRing().getSigningKey().getKeyID();
+		assertNotEquals(oldKid, newKid);
+		assertEquals(oldVersion + 1, generations().getVersion());
+
+		// node B picks the new generation up through the entry listener
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!newKid.equals(keysB.getKeyRing().getSigningKey().getKeyID())) {
+			assertTrue(System.currentTimeMillis() < deadline, "node B never swapped in the rotated key");
+			Thread.sleep(50);
+		}
+		// the old key stays published, so tokens it signed still verify
+		assertNotNull(keysB.getKeyRing().getVerifier(oldKid));
+
+		// tokens signed by the new key, on either node, verify on both
+		for (ConfigurableApplicationContext signer : new ConfigurableApplicationContext[]{nodeA, nodeB}) {
+			String token = signer.getBean(TokenService.class).createNewAccessToken(CLIENT_ID, USER_EMAIL);
+			assertEquals(newKid, JWSObject.parse(token).getHeader().getKeyID());
+			for (ConfigurableApplicationContext verifier : new ConfigurableApplicationContext[]{nodeA, nodeB}) {
+				assertEquals(USER_EMAIL, verifier.getBean(TokenService.class).verifyToken(token)
+						.getPrincipal().getEmail());
+				assertEquals(USER_EMAIL, verifier.getBean(TokenService.class).verifyToken(oldToken)
+						.getPrincipal().getEmail());
+			}
+		}
+
+		// and so do codes
+		String code = nodeA.getBean(AuthService.class).getAuthCode(codeRequest(), user());
+		assertEquals(newKid, JWSObject.parse(code).getHeader().getKeyID());
+		nodeB.getBean(TokenService.class).verifyClientTokenRequest(client(), tokenRequest(code));
+	}
+
+	private static KeyGenerations generations() {
+		return nodeB.getBean(HazelcastInstance.class).<String, KeyGenerations>getMap("key-generations")
+				.get("generations");
+	}
+
+	private static CodeRequest codeRequest() {
+		return new CodeRequest("code", CLIENT_ID, "read:transactions test:scope", "state", REDIRECT_URI);
+	}
+
+	private static TokenRequest tokenRequest(String code) {
+		TokenRequest tokenRequest = new TokenRequest();
+		tokenRequest.setGrantType("authorization_code");
+		tokenRequest.setRedirectUri(REDIRECT_URI);
+		tokenRequest.setCode(code);
+		return tokenRequest;
+	}
+
+	private static Authentication client() {
+		return new UsernamePasswordAuthenticationToken(CLIENT_ID, null,
+				Collections.singletonList(new SimpleGrantedAuthority("ROLE_CLIENT")));
+	}
+
+	private static Authentication user() {
+		return new UsernamePasswordAuthenticationToken(USER_EMAIL, null,
+				Collections.singletonList(new SimpleGrantedAuthority("ROLE_USER")));
+	}
+}
@@ -0,0 +1,141 @@
+package dev.jlarsen.authserverdemo.config;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Legacy auth_client rows (scope, claims and grants as Java-serialized columns) are copied into the element
+ * collection tables before the old columns are dropped
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE, properties = {
+		"spring.datasource.url=jdbc:h2:mem:column_migration_tests;DB_CLOSE_DELAY=-1"})
+@ActiveProfiles("h2")
+class AuthClientColumnMigrationTests {
+
+	private static final String LEGACY_CLIENT = "legacy-client";
+
+	@Autowired
+	AuthClientColumnMigration migration;
+
+	@Autowired
+	JdbcTemplate jdbcTemplate;
+
+	@AfterEach
+	void removeLegacyClient() {
+		for (String column : new String[]{"scope", "claims", "grants"}) {
+			jdbcTemplate.execute("alter table auth_client drop column if exists " + column);
+		}
+		for (String table : new String[]{"auth_client_scope", "auth_client_claim", "auth_client_grant"}) {
+			jdbcTemplate.update("delete from " + table + " where client_id = ?", LEGACY_CLIENT);
+		}
+		jdbcTemplate.update("delete from auth_client where client_id = ?", LEGACY_CLIENT);
+	}
+
+	@Test
+	void legacyColumnsAreCopiedThenDropped() throws IOException {
+		List<String> sampleScope = values("select scope from auth_client_scope where client_id = ?", "test-client");
+		addLegacyColumns();
+		Map<String, String> claims = new HashMap<>();
+		claims.put("accountNo", "5000");
+		claims.put("region", "eu");
+		insertLegacyClient(new ArrayList<>(Arrays.asList("read:transactions", "legacy:scope")), claims,
+				new ArrayList<>(Arrays.asList("code", "client_credentials")));
+		// a client that already has rows in the new tables keeps them as they are
+		jdbcTemplate.update("update auth_client set scope = ? where client_id = ?",
+				serialize(new ArrayList<>(Collections.singletonList("not:copied"))), "test-client");
+
+		migration.migrate();
+
+		assertEquals(Arrays.asList("legacy:scope", "read:transactions"),
+				values("select scope from auth_client_scope where client_id = ?", LEGACY_CLIENT));
+		assertEquals(Arrays.asList("client_credentials", "code"),
+				values("select grant_type from auth_client_grant where client_id = ?", LEGACY_CLIENT));
+		Map<String, String> copiedClaims = new HashMap<>();
+		jdbcTemplate.query("select claim, claim_value from auth_client_claim where client_id = ?", rs -> {
+			copiedClaims.put(rs.getString("claim"), rs.getString("claim_value"));
+		}, LEGACY_CLIENT);
+		assertEquals(claims, copiedClaims);
+		assertEquals(sampleScope, values("select scope from auth_client_scope where client_id = ?", "test-client"));
+		assertEquals(Collections.emptyList(), legacyColumns());
+
+		// nothing left to do on the next start
+		migration.migrate();
+		assertEquals(2, values("select scope from auth_client_scope where client_id = ?", LEGACY_CLIENT).size());
+	}
+
+	@Test
+	void nullColumnsCopyNothing() {
+		addLegacyColumns();
+		jdbcTemplate.update("insert into auth_client (client_id, name) values (?, ?)", LEGACY_CLIENT, "legacy");
+
+		migration.migrate();
+
+		assertEquals(Collections.emptyList(),
+				values("select scope from auth_client_scope where client_id = ?", LEGACY_CLIENT));
+		assertEquals(Collections.emptyList(), legacyColumns());
+	}
+
+	@Test
+	void unexpectedClassKeepsTheColumns() throws IOException {
+		addLegacyColumns();
+		// anything but the lists and maps Hibernate wrote is refused before a single row is copied
+		jdbcTemplate.update("insert into auth_client (client_id, name, scope) values (?, ?, ?)",
+				LEGACY_CLIENT, "legacy", serialize(new Date()));
+
+		assertThrows(InvalidClassException.class, () -> migration.migrate());
+
+		assertEquals(Arrays.asList("CLAIMS", "GRANTS", "SCOPE"), legacyColumns());
+	}
+
+	@Test
+	void partlyDroppedColumnsAreDropped() {
+		addLegacyColumns();
+		jdbcTemplate.execute("alter table auth_client drop column scope");
+
+		migration.migrate();
+
+		assertEquals(Collections.emptyList(), legacyColumns());
+	}
+
+	private void addLegacyColumns() {
+		// the columns Hibernate created for the serialized fields
+		for (String column : new String[]{"scope", "claims", "grants"}) {
+			jdbcTemplate.execute("alter table auth_client add column " + column + " varbinary(4096)");
+		}
+	}
+
+	private void insertLegacyClient(List<String> scope, Map<String, String> claims, List<String> grants)
+			throws IOException {
+		jdbcTemplate.update("insert into auth_client (client_id, name, scope, claims, grants) values (?, ?, ?, ?, ?)",
+				LEGACY_CLIENT, "legacy", serialize(scope), serialize(new HashMap<>(claims)), serialize(grants));
+	}
+
+	private List<String> values(String sql, String clientId) {
+		List<String> values = jdbcTemplate.queryForList(sql, String.class, clientId);
+		Collections.sort(values);
+		return values;
+	}
+
+	private List<String> legacyColumns() {
+		return jdbcTemplate.queryForList("select column_name from information_schema.columns " +
+				"where table_name = 'AUTH_CLIENT' and column_name in ('SCOPE', 'CLAIMS', 'GRANTS') " +
+				"order by column_name", String.class);
+	}
+
+	private static byte[] serialize(Serializable value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(value);
+		}
+		return bytes.toByteArray();
+	}
+}
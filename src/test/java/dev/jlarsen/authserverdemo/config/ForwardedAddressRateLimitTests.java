@@ -0,0 +1,51 @@
+package dev.jlarsen.authserverdemo.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Behind a trusted proxy (here loopback) each forwarded address gets its own bucket,
+ * so the users of a load balancer aren't throttled together
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+		"spring.datasource.url=jdbc:h2:mem:forwarded_address_tests;DB_CLOSE_DELAY=-1",
+		"rate-limit.address.requests-per-second=0.01",
+		"rate-limit.address.burst=2"})
+@ActiveProfiles("h2")
+class ForwardedAddressRateLimitTests {
+
+	@LocalServerPort
+	int port;
+
+	@Test
+	void forwardedAddressesHaveTheirOwnBuckets() throws IOException {
+		assertNotEquals(429, authorize("203.0.113.1"));
+		assertNotEquals(429, authorize("203.0.113.1"));
+		assertEquals(429, authorize("203.0.113.1"));
+
+		// another user behind the same proxy
+		assertNotEquals(429, authorize("203.0.113.2"));
+		// only the address our proxy saw counts, whatever the client put in front of it
+		assertNotEquals(429, authorize("198.51.100.7, 203.0.113.3"));
+		assertNotEquals(429, authorize("198.51.100.7, 203.0.113.3"));
+		assertEquals(429, authorize("198.51.100.8, 203.0.113.3"));
+	}
+
+	private int authorize(String forwardedFor) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port +
+				"/oauth2/authorize?response_type=code&client_id=test-client&state=state").openConnection();
+		connection.setInstanceFollowRedirects(false);
+		connection.setRequestProperty("X-Forwarded-For", forwardedFor);
+		connection.setConnectTimeout(5000);
+		connection.setReadTimeout(30000);
+		return connection.getResponseCode();
+	}
+}
@@ -0,0 +1,105 @@
+package dev.jlarsen.authserverdemo.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * With the password pool stuck, only max-waiters requests wait on BCrypt, the rest get a quick 503,
+ * and endpoints that need no password check keep answering
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+		"spring.datasource.url=jdbc:h2:mem:password_pool_tests;DB_CLOSE_DELAY=-1",
+		"rate-limit.enabled=false",
+		"crypto.password.threads=1",
+		"crypto.password.queue-size=16",
+		"crypto.password.max-waiters=2"})
+@ActiveProfiles("h2")
+class PasswordPoolSaturationTests {
+
+	private static final int REQUESTS = 10;
+
+	@LocalServerPort
+	int port;
+
+	@Autowired
+	CryptoExecutors cryptoExecutors;
+
+	@Test
+	void jwksStaysResponsiveWhilePasswordPoolIsSaturated() throws Exception {
+		// hold the only password thread
+		CountDownLatch release = new CountDownLatch(1);
+		cryptoExecutors.getPasswordHashing().submit(() -> {
+			release.await();
+			return null;
+		});
+
+		ExecutorService clients = Executors.newFixedThreadPool(REQUESTS);
+		try {
+			CompletionService<Integer> responses = new ExecutorCompletionService<>(clients);
+			for (int i = 0; i < REQUESTS; i++) {
+				responses.submit(this::postToken);
+			}
+
+			// all but max-waiters are turned away without waiting for the pool
+			for (int i = 0; i < REQUESTS - 2; i++) {
+				Future<Integer> response = responses.poll(10, TimeUnit.SECONDS);
+				assertNotNull(response, "request still blocked on the password pool");
+				assertEquals(503, response.get());
+			}
+			assertNull(responses.poll(200, TimeUnit.MILLISECONDS));
+
+			// two request threads are blocked, none of that gets in the way of the JWKS
+			long start = System.nanoTime();
+			assertEquals(200, get("/oauth2/.well-known/jwks.json"));
+			assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 2);
+
+			// once the pool is free the waiting two are checked (and fail, the secret is wrong)
+			release.countDown();
+			for (int i = 0; i < 2; i++) {
+				Future<Integer> response = responses.poll(10, TimeUnit.SECONDS);
+				assertNotNull(response);
+				assertEquals(401, response.get());
+			}
+		} finally {
+			release.countDown();
+			clients.shutdownNow();
+		}
+	}
+
+	private int postToken() throws IOException {
+		HttpURLConnection connection = open("/oauth2/token");
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Authorization", "Basic " + Base64.getEncoder()
+				.encodeToString("test-client:wrong-secret".getBytes(StandardCharsets.UTF_8)));
+		connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+		connection.setDoOutput(true);
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write("grant_type=client_credentials".getBytes(StandardCharsets.UTF_8));
+		}
+		return connection.getResponseCode();
+	}
+
+	private int get(String path) throws IOException {
+		return open(path).getResponseCode();
+	}
+
+	private HttpURLConnection open(String path) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+		connection.setConnectTimeout(5000);
+		connection.setReadTimeout(30000);
+		return connection;
+	}
+}
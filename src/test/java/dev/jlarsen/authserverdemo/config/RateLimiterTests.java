@@ -0,0 +1,168 @@
+package dev.jlarsen.authserverdemo.config;
+
+import com.hazelcast.cluster.Cluster;
+import com.hazelcast.cluster.Member;
+import com.hazelcast.core.HazelcastInstance;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * GCRA buckets (burst, refill, per member share) and which requests share a bucket
+ */
+class RateLimiterTests {
+
+	private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	@Test
+	void burstIsAllowedThenRejected() {
+		RateLimiter.Limit limit = new RateLimiter.Limit(16, 10, 20);
+		for (int i = 0; i < 20; i++) {
+			assertTrue(limit.tryAcquire("key", 0, 1));
+		}
+		assertFalse(limit.tryAcquire("key", 0, 1));
+		// other keys have their own bucket
+		assertTrue(limit.tryAcquire("other", 0, 1));
+	}
+
+	@Test
+	void bucketRefillsAtTheRate() {
+		RateLimiter.Limit limit = new RateLimiter.Limit(16, 10, 20);
+		for (int i = 0; i < 20; i++) {
+			limit.tryAcquire("key", 0, 1);
+		}
+		// one token per interval
+		assertFalse(limit.tryAcquire("key", INTERVAL - 1, 1));
+		assertTrue(limit.tryAcquire("key", INTERVAL, 1));
+		assertFalse(limit.tryAcquire("key", INTERVAL, 1));
+
+		// an idle bucket fills up to the burst, never past it
+		long later = TimeUnit.SECONDS.toNanos(60);
+		for (int i = 0; i < 20; i++) {
+			assertTrue(limit.tryAcquire("key", later, 1));
+		}
+		assertFalse(limit.tryAcquire("key", later, 1));
+	}
+
+	@Test
+	void eachMemberGetsItsShare() {
+		RateLimiter.Limit limit = new RateLimiter.Limit(16, 10, 20);
+		// half the burst
+		for (int i = 0; i < 10; i++) {
+			assertTrue(limit.tryAcquire("key", 0, 2));
+		}
+		assertFalse(limit.tryAcquire("key", 0, 2));
+		// refilled at half the rate
+		assertFalse(limit.tryAcquire("key", INTERVAL, 2));
+		assertTrue(limit.tryAcquire("key", 2 * INTERVAL, 2));
+		assertFalse(limit.tryAcquire("key", 2 * INTERVAL, 2));
+
+		// a share bigger than the burst still lets one request through
+		RateLimiter.Limit small = new RateLimiter.Limit(16, 10, 2);
+		assertTrue(small.tryAcquire("key", 0, 3));
+		assertFalse(small.tryAcquire("key", 0, 3));
+	}
+
+	@Test
+	void clusterModeSplitsTheRateBetweenMembers() {
+		HazelcastInstance hazelcastInstance = mock(HazelcastInstance.class);
+		Cluster cluster = mock(Cluster.class);
+		Set<Member> members = new HashSet<>();
+		members.add(mock(Member.class));
+		members.add(mock(Member.class));
+		when(hazelcastInstance.getCluster()).thenReturn(cluster);
+		when(cluster.getMembers()).thenReturn(members);
+		RateLimiter rateLimiter = new RateLimiter(new SimpleMeterRegistry(), hazelcastInstance, true, 1024,
+				0.01, 20, 0.01, 40, true);
+
+		for (int i = 0; i < 10; i++) {
+			assertTrue(rateLimiter.tryAcquire("test-client", "10.0.0.1"));
+		}
+		assertFalse(rateLimiter.tryAcquire("test-client", "10.0.0.1"));
+	}
+
+	@Test
+	void clientOnDifferentAddressesIsNotThrottledTogether() {
+		RateLimiter rateLimiter = rateLimiter();
+		for (int i = 0; i < 20; i++) {
+			assertTrue(rateLimiter.tryAcquire("test-client", "10.0.0.1"));
+		}
+		assertFalse(rateLimiter.tryAcquire("test-client", "10.0.0.1"));
+
+		// the same client id from somewhere else, e.g. someone who only knows it
+		assertTrue(rateLimiter.tryAcquire("test-client", "10.0.0.2"));
+		// a request we can't tie to a client still only counts against its address
+		assertTrue(rateLimiter.tryAcquire(null, "10.0.0.1"));
+	}
+
+	@Test
+	void authorizeIsOnlyLimitedPerAddress() {
+		RateLimitFilter filter = new RateLimitFilter(rateLimiter());
+		// far more of the client's users than its burst, each on their own address
+		for (int i = 0; i < 100; i++) {
+			MockHttpServletRequest request = request("/authorize", "10.0.1." + i);
+			request.setParameter("client_id", "test-client");
+			assertEquals(200, filter(filter, request));
+		}
+
+		// one address is still limited
+		for (int i = 0; i < 40; i++) {
+			assertEquals(200, filter(filter, request("/authorize", "10.0.2.1")));
+		}
+		assertEquals(429, filter(filter, request("/authorize", "10.0.2.1")));
+	}
+
+	@Test
+	void tokenIsLimitedPerClientOnEachAddress() {
+		RateLimitFilter filter = new RateLimitFilter(rateLimiter());
+		for (int i = 0; i < 20; i++) {
+			assertEquals(200, filter(filter, tokenRequest("10.0.3.1")));
+		}
+		assertEquals(429, filter(filter, tokenRequest("10.0.3.1")));
+		assertEquals(200, filter(filter, tokenRequest("10.0.3.2")));
+	}
+
+	private static RateLimiter rateLimiter() {
+		// slow enough that no bucket refills while a test runs
+		return new RateLimiter(new SimpleMeterRegistry(), mock(HazelcastInstance.class), true, 65536,
+				0.01, 20, 0.01, 40, false);
+	}
+
+	private static MockHttpServletRequest tokenRequest(String address) {
+		MockHttpServletRequest request = request("/token", address);
+		request.setMethod("POST");
+		request.addHeader("Authorization", "Basic " + Base64.getEncoder()
+				.encodeToString("test-client:secret".getBytes(StandardCharsets.UTF_8)));
+		return request;
+	}
+
+	private static MockHttpServletRequest request(String path, String address) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/oauth2" + path);
+		request.setContextPath("/oauth2");
+		request.setServletPath(path);
+		request.setRemoteAddr(address);
+		return request;
+	}
+
+	private static int filter(RateLimitFilter filter, MockHttpServletRequest request) {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		try {
+			filter.doFilter(request, response, new MockFilterChain());
+		} catch (Exception e) {
+			throw new AssertionError(e);
+		}
+		return response.getStatus();
+	}
+}
@@ -0,0 +1,150 @@
+package dev.jlarsen.authserverdemo.services;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.ECDSAVerifier;
+import com.nimbusds.jose.crypto.Ed25519Verifier;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.OctetKeyPair;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.nimbusds.jose.jwk.gen.OctetKeyPairGenerator;
+import com.nimbusds.jose.util.Base64URL;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import dev.jlarsen.authserverdemo.models.IssuedToken;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tokens from the hand written encoder must parse and verify with Nimbus, with every claim intact
+ */
+class AccessTokenMinterTests {
+
+	private static final Instant ISSUED_AT = Instant.ofEpochSecond(1700000000);
+	private static final Instant EXPIRES_AT = ISSUED_AT.plusSeconds(21600);
+
+	private static final String[] AWKWARD_STRINGS = {
+			"",
+			"plain@email.com",
+			"quote\" and backslash\\ and both \\\"",
+			"control \u0000 \u0001 \b \t \n \f \r \u001f chars",
+			"non-ascii \u00e9\u00f1\u00fc \u00a9 \u07ff \u0800 \u4e2d\u6587 \uffff",
+			"surrogate pairs \ud83d\ude00 \ud834\udd1e \udbff\udfff",
+			"read:transactions test:scope a:scope"
+	};
+
+	@Test
+	void es256TokensVerifyWithNimbus() throws Exception {
+		ECKey key = new ECKeyGenerator(Curve.P_256).keyID("es256").algorithm(JWSAlgorithm.ES256).generate();
+		assertTokensVerify(key, new ECDSAVerifier(key.toPublicJWK()), JWSAlgorithm.ES256);
+	}
+
+	@Test
+	void edDsaTokensVerifyWithNimbus() throws Exception {
+		OctetKeyPair key = new OctetKeyPairGenerator(Curve.Ed25519).keyID("ed25519")
+				.algorithm(JWSAlgorithm.EdDSA).generate();
+		assertTokensVerify(key, new Ed25519Verifier(key.toPublicJWK()), JWSAlgorithm.EdDSA);
+	}
+
+	private void assertTokensVerify(JWK key, JWSVerifier verifier, JWSAlgorithm algorithm) throws Exception {
+		AccessTokenMinter minter = minter(key);
+		for (String subject : AWKWARD_STRINGS) {
+			for (String scope : AWKWARD_STRINGS) {
+				assertTokenVerifies(minter.mint("test-client", subject, scope, ISSUED_AT, EXPIRES_AT),
+						verifier, algorithm, key.getKeyID(), subject, scope);
+			}
+		}
+		// no scope claim at all
+		assertTokenVerifies(minter.mint("test-client", "test@email.com", null, ISSUED_AT, EXPIRES_AT),
+				verifier, algorithm, key.getKeyID(), "test@email.com", null);
+	}
+
+	private void assertTokenVerifies(IssuedToken issued, JWSVerifier verifier, JWSAlgorithm algorithm,
+									 String keyId, String subject, String scope) throws Exception {
+		SignedJWT jwt = SignedJWT.parse(issued.getToken());
+		assertTrue(jwt.verify(verifier));
+		assertEquals(algorithm, jwt.getHeader().getAlgorithm());
+		assertEquals(keyId, jwt.getHeader().getKeyID());
+
+		JWTClaimsSet claims = jwt.getJWTClaimsSet();
+		assertEquals(subject, claims.getSubject());
+		assertEquals("test-client", claims.getStringClaim("cid"));
+		assertEquals(scope, claims.getStringClaim("scope"));
+		assertEquals(issued.getJti(), claims.getJWTID());
+		assertEquals(Date.from(ISSUED_AT), claims.getIssueTime());
+		assertEquals(Date.from(EXPIRES_AT), claims.getExpirationTime());
+		assertEquals(EXPIRES_AT, issued.getExpiresAt());
+		assertEquals(AccessTokenMinter.ISSUER, claims.getIssuer());
+		assertEquals(Collections.singletonList(AccessTokenMinter.AUDIENCE), claims.getAudience());
+		assertEquals(5000L, claims.getLongClaim("accountNo"));
+		Set<String> names = new HashSet<>(Arrays.asList("sub", "exp", "iat", "cid", "jti", "iss", "aud", "accountNo"));
+		if (scope != null) {
+			names.add("scope");
+		}
+		assertEquals(names, claims.getClaims().keySet());
+	}
+
+	@Test
+	void payloadOfEveryLengthModThreeIsEncodedLikeNimbus() throws Exception {
+		ECKey key = new ECKeyGenerator(Curve.P_256).keyID("es256").algorithm(JWSAlgorithm.ES256).generate();
+		AccessTokenMinter minter = minter(key);
+		Set<Integer> remainders = new HashSet<>();
+		StringBuilder subject = new StringBuilder();
+		for (int i = 0; i < 6; i++) {
+			String token = minter.mint("test-client", subject.toString(), null, ISSUED_AT, EXPIRES_AT).getToken();
+			String payload = token.split("\\.")[1];
+			byte[] decoded = new Base64URL(payload).decode();
+			remainders.add(decoded.length % 3);
+			// same segment Nimbus would have produced for these bytes (unpadded base64url)
+			assertEquals(Base64URL.encode(decoded).toString(), payload);
+			assertEquals(subject.toString(), SignedJWT.parse(token).getJWTClaimsSet().getSubject());
+			subject.append('x');
+		}
+		assertEquals(new HashSet<>(Arrays.asList(0, 1, 2)), remainders);
+	}
+
+	@Test
+	void base64UrlMatchesJdkEncoder() {
+		Random random = new Random(42);
+		for (int length = 0; length < 64; length++) {
+			byte[] src = new byte[length];
+			random.nextBytes(src);
+			AccessTokenMinter.ByteBuffer out = new AccessTokenMinter.ByteBuffer(1);
+			AccessTokenMinter.writeBase64Url(out, src, length);
+			assertEquals(Base64.getUrlEncoder().withoutPadding().encodeToString(src), utf8(out));
+		}
+	}
+
+	@Test
+	void jsonStringIsEscapedAndUtf8Encoded() {
+		AccessTokenMinter.ByteBuffer out = new AccessTokenMinter.ByteBuffer(1);
+		AccessTokenMinter.writeJsonString(out, "a\"b\\c\u0001\u00e9\u4e2d\ud83d\ude00");
+		assertEquals("\"a\\\"b\\\\c\\u0001\u00e9\u4e2d\ud83d\ude00\"", utf8(out));
+
+		// an unpaired surrogate has no UTF-8 encoding, it becomes the replacement character
+		out.reset();
+		AccessTokenMinter.writeJsonString(out, "x\ud83dy");
+		assertEquals("\"x\\ufffdy\"", utf8(out));
+	}
+
+	private static AccessTokenMinter minter(JWK key) {
+		KeyService keyService = mock(KeyService.class);
+		when(keyService.getKeyRing()).thenReturn(new KeyRing(Collections.singletonList(key), key));
+		AccessTokenMinter minter = new AccessTokenMinter();
+		minter.keyService = keyService;
+		return minter;
+	}
+
+	private static String utf8(AccessTokenMinter.ByteBuffer out) {
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,105 @@
+package dev.jlarsen.authserverdemo.services;
+
+import dev.jlarsen.authserverdemo.models.IssuedToken;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reused client_credentials tokens stay bounded per client, and evicting a client drops all of its tokens
+ */
+class AccessTokenReuseCacheTests {
+
+	private AccessTokenReuseCache cache;
+
+	@BeforeEach
+	void createCache() {
+		cache = new AccessTokenReuseCache();
+		cache.enabled = true;
+		cache.minRemainingSeconds = 3600;
+		cache.maxScopesPerClient = 4;
+	}
+
+	@Test
+	void tokenIsReusedWhileEnoughLifetimeRemains() {
+		IssuedToken issued = token(21600);
+		cache.put("test-client", "read:transactions", issued);
+
+		assertSame(issued, cache.get("test-client", "read:transactions"));
+		assertNull(cache.get("test-client", "test:scope"));
+		assertNull(cache.get("other-client", "read:transactions"));
+
+		cache.put("test-client", "test:scope", token(60));
+		assertNull(cache.get("test-client", "test:scope"));
+	}
+
+	@Test
+	void eachClientHoldsAtMostItsLimit() {
+		IssuedToken first = token(20000);
+		cache.put("test-client", "scope-0", first);
+		for (int i = 1; i < 10; i++) {
+			cache.put("test-client", "scope-" + i, token(20000 + i));
+		}
+
+		int cached = 0;
+		for (int i = 0; i < 10; i++) {
+			if (cache.get("test-client", "scope-" + i) != null) {
+				cached++;
+			}
+		}
+		assertEquals(4, cached);
+		// the ones expiring first made room, the newest are kept
+		assertNull(cache.get("test-client", "scope-0"));
+		assertNotNull(cache.get("test-client", "scope-9"));
+		// other clients have their own limit
+		cache.put("other-client", "scope-0", first);
+		assertSame(first, cache.get("other-client", "scope-0"));
+	}
+
+	@Test
+	void tokensThatCantBeReusedMakeRoomFirst() {
+		cache.put("test-client", "stale", token(60));
+		cache.put("test-client", "scope-1", token(20000));
+		cache.put("test-client", "scope-2", token(20001));
+		cache.put("test-client", "scope-3", token(20002));
+
+		cache.put("test-client", "scope-4", token(20003));
+
+		for (int i = 1; i <= 4; i++) {
+			assertNotNull(cache.get("test-client", "scope-" + i));
+		}
+		// replacing a cached scope never pushes another out
+		cache.put("test-client", "scope-1", token(20004));
+		for (int i = 1; i <= 4; i++) {
+			assertNotNull(cache.get("test-client", "scope-" + i));
+		}
+	}
+
+	@Test
+	void evictDropsOnlyThatClient() {
+		cache.put("test-client", "read:transactions", token(21600));
+		cache.put("test-client", "test:scope", token(21600));
+		cache.put("test-client-2", "read:transactions", token(21600));
+
+		cache.evict("test-client");
+
+		assertNull(cache.get("test-client", "read:transactions"));
+		assertNull(cache.get("test-client", "test:scope"));
+		// a client id that starts with the evicted one is someone else
+		assertNotNull(cache.get("test-client-2", "read:transactions"));
+	}
+
+	@Test
+	void disabledCacheHoldsNothing() {
+		cache.enabled = false;
+		cache.put("test-client", "read:transactions", token(21600));
+		assertNull(cache.get("test-client", "read:transactions"));
+	}
+
+	private static IssuedToken token(long secondsLeft) {
+		return new IssuedToken("token", Instant.now().plusSeconds(secondsLeft), "jti");
+	}
+}
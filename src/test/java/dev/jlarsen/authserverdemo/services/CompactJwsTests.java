@@ -0,0 +1,176 @@
+package dev.jlarsen.authserverdemo.services;
+
+import com.nimbusds.jose.*;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.crypto.Ed25519Signer;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.ECKey;
+import com.nimbusds.jose.jwk.OctetKeyPair;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.nimbusds.jose.jwk.gen.OctetKeyPairGenerator;
+import dev.jlarsen.authserverdemo.exceptions.TokenException;
+import dev.jlarsen.authserverdemo.exceptions.TokenRequestError;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * CompactJws only lets through well-formed tokens, signed with an algorithm we support, carrying exp and sub
+ */
+class CompactJwsTests {
+
+	private static final String HEADER = "{\"alg\":\"ES256\",\"kid\":\"key-1\",\"typ\":\"JWT\"}";
+	private static final String PAYLOAD = "{\"sub\":\"test@email.com\",\"exp\":1700000000,\"cid\":\"test-client\"," +
+			"\"jti\":\"id-1\",\"scope\":\"read:transactions\",\"aud\":[\"a\",\"b\"],\"nested\":{\"exp\":\"x\"}}";
+	private static final String SIGNATURE = "c2lnbmF0dXJl";
+
+	@Test
+	void wellFormedTokenIsParsed() {
+		CompactJws jws = CompactJws.parse(token(HEADER, PAYLOAD));
+
+		assertEquals(JWSAlgorithm.ES256, jws.getHeader().getAlgorithm());
+		assertEquals("key-1", jws.getKeyId());
+		assertEquals("test@email.com", jws.getSubject());
+		assertEquals("test-client", jws.getClientId());
+		assertEquals("id-1", jws.getJti());
+		assertEquals(1700000000L, jws.getExpiresAt());
+		assertEquals(SIGNATURE, jws.getSignature().toString());
+		String token = token(HEADER, PAYLOAD);
+		assertArrayEquals(token.substring(0, token.lastIndexOf('.')).getBytes(StandardCharsets.US_ASCII),
+				jws.getSigningInput());
+	}
+
+	@Test
+	void unsupportedAlgorithmsAreRejected() {
+		assertInvalid(token("{\"alg\":\"none\",\"kid\":\"key-1\"}", PAYLOAD));
+		assertInvalid(token("{\"alg\":\"HS256\",\"kid\":\"key-1\"}", PAYLOAD));
+		assertInvalid(token("{\"alg\":\"RS256\",\"kid\":\"key-1\"}", PAYLOAD));
+		assertInvalid(token("{\"alg\":\"es256\",\"kid\":\"key-1\"}", PAYLOAD));
+		assertInvalid(token("{\"alg\":null,\"kid\":\"key-1\"}", PAYLOAD));
+		assertInvalid(token("{\"alg\":[\"ES256\"],\"kid\":\"key-1\"}", PAYLOAD));
+		assertInvalid(token("{\"kid\":\"key-1\"}", PAYLOAD));
+		// an unsigned token has no signature segment at all
+		assertInvalid(encode("{\"alg\":\"none\"}") + "." + encode(PAYLOAD) + ".");
+	}
+
+	@Test
+	void criticalHeaderParametersAreRejected() {
+		assertInvalid(token("{\"alg\":\"ES256\",\"kid\":\"key-1\",\"crit\":[\"exp\"],\"exp\":1}", PAYLOAD));
+		assertInvalid(token("{\"alg\":\"ES256\",\"kid\":\"key-1\",\"crit\":[]}", PAYLOAD));
+	}
+
+	@Test
+	void missingOrExtraSegmentsAreRejected() {
+		String header = encode(HEADER);
+		String payload = encode(PAYLOAD);
+		assertInvalid(null);
+		assertInvalid("");
+		assertInvalid(".");
+		assertInvalid("..");
+		assertInvalid(header);
+		assertInvalid(header + "." + payload);
+		assertInvalid(header + "." + payload + ".");
+		assertInvalid(header + ".." + SIGNATURE);
+		assertInvalid("." + payload + "." + SIGNATURE);
+		assertInvalid(header + "." + payload + "." + SIGNATURE + "." + SIGNATURE);
+		assertInvalid(header + "." + payload + "." + SIGNATURE + ".");
+		// a JWE has five
+		assertInvalid(header + ".a.b.c.d");
+	}
+
+	@Test
+	void nonBase64UrlCharactersAreRejected() {
+		String token = token(HEADER, PAYLOAD);
+		for (String c : new String[]{"+", "/", "=", " ", "%", "\n", "\u00e9", "\u0000"}) {
+			assertInvalid(c + token);
+			assertInvalid(token.replaceFirst("\\.", "." + c));
+			assertInvalid(token + c);
+		}
+		// standard base64 padding
+		assertInvalid(encode(HEADER) + "==." + encode(PAYLOAD) + "." + SIGNATURE);
+		// a segment length no base64 encoding can have
+		assertInvalid("AAAAA." + encode(PAYLOAD) + "." + SIGNATURE);
+	}
+
+	@Test
+	void overlongTokensAreRejected() {
+		StringBuilder padding = new StringBuilder();
+		while (padding.length() < CompactJws.MAX_LENGTH) {
+			padding.append("xxxxxxxxxx");
+		}
+		String payload = "{\"sub\":\"test@email.com\",\"exp\":1700000000,\"pad\":\"" + padding + "\"}";
+		assertTrue(token(HEADER, payload).length() > CompactJws.MAX_LENGTH);
+		assertInvalid(token(HEADER, payload));
+	}
+
+	@Test
+	void expMustBeAnInteger() {
+		assertInvalid(token(HEADER, "{\"sub\":\"test@email.com\",\"exp\":\"1700000000\"}"));
+		assertInvalid(token(HEADER, "{\"sub\":\"test@email.com\",\"exp\":1700000000.5}"));
+		assertInvalid(token(HEADER, "{\"sub\":\"test@email.com\",\"exp\":null}"));
+		assertInvalid(token(HEADER, "{\"sub\":\"test@email.com\",\"exp\":[1700000000]}"));
+		assertInvalid(token(HEADER, "{\"sub\":\"test@email.com\",\"exp\":-1}"));
+		assertInvalid(token(HEADER, "{\"sub\":\"test@email.com\"}"));
+	}
+
+	@Test
+	void subIsRequired() {
+		assertInvalid(token(HEADER, "{\"exp\":1700000000}"));
+		assertInvalid(token(HEADER, "{\"sub\":null,\"exp\":1700000000}"));
+		assertInvalid(token(HEADER, "{\"sub\":42,\"exp\":1700000000}"));
+	}
+
+	@Test
+	void segmentsMustBeJsonObjects() {
+		assertInvalid(token("[\"ES256\"]", PAYLOAD));
+		assertInvalid(token(HEADER, "\"test@email.com\""));
+		assertInvalid(token(HEADER, "{\"sub\":\"test@email.com\",\"exp\":1700000000"));
+		assertInvalid(encode(HEADER) + "." + "bm90IGpzb24" + "." + SIGNATURE);
+	}
+
+	@Test
+	void keyIsOnlyUsedWithItsOwnAlgorithm() throws Exception {
+		ECKey ecKey = new ECKeyGenerator(Curve.P_256).keyID("ec-key").algorithm(JWSAlgorithm.ES256).generate();
+		KeyRing ring = new KeyRing(Collections.singletonList(ecKey), ecKey);
+
+		String signed = sign(new JWSHeader.Builder(JWSAlgorithm.ES256).keyID("ec-key").build(),
+				new ECDSASigner(ecKey));
+		assertTrue(TokenService.verifies(ring, CompactJws.parse(signed)));
+
+		// the kid names our EC key, but the header asks for EdDSA (signed with some other Ed25519 key)
+		OctetKeyPair edKey = new OctetKeyPairGenerator(Curve.Ed25519).keyID("ec-key").generate();
+		String confused = sign(new JWSHeader.Builder(JWSAlgorithm.EdDSA).keyID("ec-key").build(),
+				new Ed25519Signer(edKey));
+		assertFalse(TokenService.verifies(ring, CompactJws.parse(confused)));
+
+		// unknown kid, and a signature that doesn't match
+		String unknown = sign(new JWSHeader.Builder(JWSAlgorithm.ES256).keyID("other-key").build(),
+				new ECDSASigner(ecKey));
+		assertFalse(TokenService.verifies(ring, CompactJws.parse(unknown)));
+		String tampered = signed.substring(0, signed.lastIndexOf('.') + 1) + SIGNATURE;
+		assertFalse(TokenService.verifies(ring, CompactJws.parse(tampered)));
+	}
+
+	private static String sign(JWSHeader header, JWSSigner signer) throws JOSEException {
+		JWSObject jws = new JWSObject(header, new Payload(PAYLOAD));
+		jws.sign(signer);
+		return jws.serialize();
+	}
+
+	private static void assertInvalid(String token) {
+		TokenException e = assertThrows(TokenException.class, () -> CompactJws.parse(token));
+		assertEquals(TokenRequestError.INVALID_GRANT, e.getError());
+	}
+
+	private static String token(String header, String payload) {
+		return encode(header) + "." + encode(payload) + "." + SIGNATURE;
+	}
+
+	private static String encode(String json) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+	}
+}
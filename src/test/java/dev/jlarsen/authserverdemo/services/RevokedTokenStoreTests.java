@@ -0,0 +1,147 @@
+package dev.jlarsen.authserverdemo.services;
+
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.MapListener;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The Bloom filter in front of the revoked tokens map must never let a revoked id through,
+ * including ids revoked while the filter is being rebuilt
+ */
+class RevokedTokenStoreTests {
+
+	// stands in for the cluster's "revoked-tokens" map
+	private final Map<String, Long> revoked = new ConcurrentHashMap<>();
+	private IMap<String, Long> map;
+	private RevokedTokenStore store;
+
+	@BeforeEach
+	@SuppressWarnings("unchecked")
+	void createStore() {
+		map = mock(IMap.class);
+		doAnswer(invocation -> {
+			revoked.put(invocation.getArgument(0), invocation.getArgument(1));
+			return null;
+		}).when(map).set(anyString(), anyLong(), anyLong(), any(TimeUnit.class));
+		when(map.containsKey(any())).thenAnswer(invocation -> revoked.containsKey(invocation.getArgument(0)));
+		when(map.keySet()).thenAnswer(invocation -> new HashSet<>(revoked.keySet()));
+		HazelcastInstance hazelcastInstance = mock(HazelcastInstance.class);
+		when(hazelcastInstance.<String, Long>getMap("revoked-tokens")).thenReturn(map);
+
+		store = new RevokedTokenStore();
+		store.hazelcastInstance = hazelcastInstance;
+		// small enough that the filter is well past its intended load in these tests
+		store.bloomBits = 1024;
+		store.bloomHashes = 5;
+		store.init();
+	}
+
+	@Test
+	void filterHasNoFalseNegatives() {
+		RevokedTokenStore.BloomFilter filter = new RevokedTokenStore.BloomFilter(4096, 5);
+		for (int i = 0; i < 5000; i++) {
+			filter.add("jti-" + i);
+			assertTrue(filter.mightContain("jti-" + i));
+		}
+		for (int i = 0; i < 5000; i++) {
+			assertTrue(filter.mightContain("jti-" + i));
+		}
+		// any size is rounded up to at least one word
+		RevokedTokenStore.BloomFilter tiny = new RevokedTokenStore.BloomFilter(1, 0);
+		tiny.add("");
+		tiny.add("jti");
+		assertTrue(tiny.mightContain(""));
+		assertTrue(tiny.mightContain("jti"));
+	}
+
+	@Test
+	void concurrentAddsAreNotLost() throws Exception {
+		RevokedTokenStore.BloomFilter filter = new RevokedTokenStore.BloomFilter(1 << 16, 5);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			int offset = t;
+			threads[t] = new Thread(() -> {
+				for (int i = offset; i < 20000; i += threads.length) {
+					filter.add("jti-" + i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		for (int i = 0; i < 20000; i++) {
+			assertTrue(filter.mightContain("jti-" + i));
+		}
+	}
+
+	@Test
+	void revokedIdsAreFound() {
+		assertFalse(store.isRevoked("jti-1"));
+		assertFalse(store.isRevoked(null));
+
+		store.revoke("jti-1", expiresIn(60));
+		assertTrue(store.isRevoked("jti-1"));
+		assertFalse(store.isRevoked("jti-2"));
+
+		// already expired tokens aren't worth storing
+		store.revoke("jti-3", expiresIn(-60));
+		assertFalse(store.isRevoked("jti-3"));
+		assertFalse(revoked.containsKey("jti-3"));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void idsRevokedOnAnotherNodeAreFound() {
+		ArgumentCaptor<MapListener> listener = ArgumentCaptor.forClass(MapListener.class);
+		verify(map).addEntryListener(listener.capture(), eq(false));
+
+		// the other node put it in the map, we only hear about it through the listener
+		revoked.put("jti-remote", expiresIn(60));
+		EntryEvent<String, Long> event = mock(EntryEvent.class);
+		when(event.getKey()).thenReturn("jti-remote");
+		((EntryAddedListener<String, Long>) listener.getValue()).entryAdded(event);
+
+		assertTrue(store.isRevoked("jti-remote"));
+	}
+
+	@Test
+	void idsStayRevokedWhileFilterIsRebuilt() {
+		store.revoke("jti-before", expiresIn(60));
+
+		// revoke another id after the rebuild has read the map, but before it swaps the filter in
+		when(map.keySet()).thenAnswer(invocation -> {
+			Set<String> keys = new HashSet<>(revoked.keySet());
+			store.revoke("jti-during", expiresIn(60));
+			assertTrue(store.isRevoked("jti-during"));
+			return keys;
+		});
+		store.rebuildFilter();
+
+		assertTrue(store.isRevoked("jti-before"));
+		assertTrue(store.isRevoked("jti-during"));
+
+		// and once it's done, ids are added to the new filter as usual
+		store.revoke("jti-after", expiresIn(60));
+		assertTrue(store.isRevoked("jti-after"));
+	}
+
+	private static long expiresIn(long seconds) {
+		return TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + seconds;
+	}
+}
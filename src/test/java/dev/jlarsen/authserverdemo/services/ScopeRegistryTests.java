@@ -0,0 +1,185 @@
+package dev.jlarsen.authserverdemo.services;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import dev.jlarsen.authserverdemo.models.ScopeIdEntity;
+import dev.jlarsen.authserverdemo.repositories.ScopeIdRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Scope bitsets (encode, allows, containsAll, decode and the claim form), and ids that stay the same
+ * once the cluster's map is gone
+ */
+class ScopeRegistryTests {
+
+	// stands in for the scope_id table
+	private final Map<String, ScopeIdEntity> table = new ConcurrentHashMap<>();
+	private ScopeIdRepository repository;
+
+	@BeforeEach
+	void createRepository() {
+		repository = mock(ScopeIdRepository.class);
+		when(repository.findAll()).thenAnswer(invocation -> new ArrayList<>(table.values()));
+		when(repository.findById(anyString()))
+				.thenAnswer(invocation -> Optional.ofNullable(table.get(invocation.<String>getArgument(0))));
+		when(repository.findMaxScopeId()).thenAnswer(invocation -> table.values().stream()
+				.map(ScopeIdEntity::getScopeId).max(Integer::compare).orElse(null));
+		when(repository.save(any(ScopeIdEntity.class))).thenAnswer(invocation -> {
+			ScopeIdEntity stored = invocation.getArgument(0);
+			assertNull(table.putIfAbsent(stored.getScope(), stored), "scope ids are never overwritten");
+			return stored;
+		});
+	}
+
+	@Test
+	void encodedScopeAllowsOnlyItsOwn() {
+		ScopeRegistry registry = registry();
+		long[] client = registry.encode(Arrays.asList("read:transactions", "test:scope"));
+		registry.encode(Collections.singletonList("other:scope"));
+
+		assertTrue(registry.allows(client, Arrays.asList("test:scope", "read:transactions")));
+		assertTrue(registry.allows(client, Collections.singletonList("read:transactions")));
+		assertTrue(registry.allows(client, Collections.emptyList()));
+		// another client's scope, and scope no client holds
+		assertFalse(registry.allows(client, Arrays.asList("read:transactions", "other:scope")));
+		assertFalse(registry.allows(client, Collections.singletonList("unknown:scope")));
+		assertFalse(registry.allows(client, Collections.singletonList("")));
+		// requests never intern anything
+		assertFalse(table.containsKey("unknown:scope"));
+		assertFalse(registry.allows(new long[0], Collections.singletonList("read:transactions")));
+	}
+
+	@Test
+	void hundredsOfScopesSpanManyWords() {
+		ScopeRegistry registry = registry();
+		List<String> all = scopes(0, 300);
+		long[] every = registry.encode(all);
+		// a client holding only scopes past the first words
+		long[] high = registry.encode(scopes(200, 300));
+		assertEquals(5, every.length);
+		assertEquals(5, high.length);
+		assertEquals(0, high[0]);
+
+		assertTrue(registry.allows(every, all));
+		assertTrue(registry.allows(high, Arrays.asList("scope-200", "scope-299")));
+		assertFalse(registry.allows(high, Collections.singletonList("scope-64")));
+		assertFalse(registry.allows(high, Collections.singletonList("scope-199")));
+		// a client with only low ids has a shorter bitset, requests for higher ids are out of its range
+		long[] low = registry.encode(Collections.singletonList("scope-1"));
+		assertEquals(1, low.length);
+		assertFalse(registry.allows(low, Collections.singletonList("scope-299")));
+
+		assertEquals(scopes(200, 300), registry.decode(high));
+		assertEquals(all, registry.decode(every));
+	}
+
+	@Test
+	void containsAllComparesBitsets() {
+		long[] granted = {0b1011, 1L << 63};
+		assertTrue(ScopeRegistry.containsAll(granted, new long[]{0b0011}));
+		assertTrue(ScopeRegistry.containsAll(granted, new long[]{0b1000, 1L << 63}));
+		assertTrue(ScopeRegistry.containsAll(granted, new long[0]));
+		// trailing zero words required are always held
+		assertTrue(ScopeRegistry.containsAll(granted, new long[]{0b0001, 0, 0}));
+		assertFalse(ScopeRegistry.containsAll(granted, new long[]{0b0100}));
+		assertFalse(ScopeRegistry.containsAll(granted, new long[]{0, 1}));
+		assertFalse(ScopeRegistry.containsAll(granted, new long[]{0, 0, 1}));
+		assertFalse(ScopeRegistry.containsAll(new long[0], new long[]{1}));
+	}
+
+	@Test
+	void claimRoundTripsAndDropsTrailingZeros() {
+		assertEquals("", ScopeRegistry.toClaim(new long[0]));
+		assertEquals("", ScopeRegistry.toClaim(new long[]{0, 0}));
+		assertEquals(0, ScopeRegistry.fromClaim("").length);
+		// ids 0 and 2 -> one byte
+		assertEquals("BQ", ScopeRegistry.toClaim(new long[]{0b101}));
+		assertEquals("BQ", ScopeRegistry.toClaim(new long[]{0b101, 0, 0}));
+		assertArrayEquals(new long[]{0b101}, ScopeRegistry.fromClaim("BQ"));
+
+		Random random = new Random(42);
+		for (int i = 0; i < 200; i++) {
+			long[] bits = new long[1 + random.nextInt(6)];
+			for (int j = 0; j < bits.length; j++) {
+				bits[j] = random.nextInt(3) == 0 ? 0 : random.nextLong();
+			}
+			long[] decoded = ScopeRegistry.fromClaim(ScopeRegistry.toClaim(bits));
+			assertTrue(ScopeRegistry.containsAll(decoded, bits));
+			assertTrue(ScopeRegistry.containsAll(bits, decoded));
+			assertTrue(decoded.length <= bits.length);
+		}
+		// id 64 and up, and the top bit of a word
+		long[] high = {1L << 63, 1, 0};
+		assertArrayEquals(new long[]{1L << 63, 1}, ScopeRegistry.fromClaim(ScopeRegistry.toClaim(high)));
+	}
+
+	@Test
+	void idsSurviveLosingTheClusterMap() {
+		ScopeRegistry first = registry();
+		long[] before = first.encode(Arrays.asList("read:transactions", "test:scope", "a:scope"));
+
+		// a cluster restart: the map is empty, the table isn't
+		ScopeRegistry restarted = registry();
+		assertTrue(restarted.allows(before, Arrays.asList("read:transactions", "test:scope", "a:scope")));
+		assertEquals(Arrays.asList("read:transactions", "test:scope", "a:scope"), restarted.decode(before));
+		long[] claimed = ScopeRegistry.fromClaim(ScopeRegistry.toClaim(before));
+		assertArrayEquals(before, restarted.encode(Arrays.asList("read:transactions", "test:scope", "a:scope")));
+
+		// a new scope gets a new id, not one of the stored ones
+		long[] added = restarted.encode(Collections.singletonList("new:scope"));
+		assertFalse(ScopeRegistry.containsAll(claimed, added));
+		assertEquals(Integer.valueOf(3), table.get("new:scope").getScopeId());
+		assertEquals(4, table.size());
+	}
+
+	@Test
+	void idsStoredButMissingFromTheMapAreReused() {
+		ScopeRegistry registry = registry();
+		// stored by another node, whose map entry was lost with a member
+		table.put("read:transactions", new ScopeIdEntity("read:transactions", 7));
+
+		assertArrayEquals(new long[]{1L << 7}, registry.encode(Collections.singletonList("read:transactions")));
+		assertArrayEquals(new long[]{1L << 8}, registry.encode(Collections.singletonList("test:scope")));
+	}
+
+	/**
+	 * A registry on its own (empty) cluster map, backed by the shared table
+	 */
+	@SuppressWarnings("unchecked")
+	private ScopeRegistry registry() {
+		Map<String, Integer> entries = new ConcurrentHashMap<>();
+		IMap<String, Integer> map = mock(IMap.class);
+		when(map.get(any())).thenAnswer(invocation -> entries.get(invocation.<String>getArgument(0)));
+		when(map.putIfAbsent(anyString(), anyInt())).thenAnswer(invocation ->
+				entries.putIfAbsent(invocation.getArgument(0), invocation.getArgument(1)));
+		doAnswer(invocation -> {
+			entries.put(invocation.getArgument(0), invocation.getArgument(1));
+			return null;
+		}).when(map).set(anyString(), anyInt());
+		when(map.entrySet()).thenAnswer(invocation -> new HashSet<>(entries.entrySet()));
+		HazelcastInstance hazelcastInstance = mock(HazelcastInstance.class);
+		when(hazelcastInstance.<String, Integer>getMap("scope-ids")).thenReturn(map);
+
+		ScopeRegistry registry = new ScopeRegistry();
+		registry.hazelcastInstance = hazelcastInstance;
+		registry.scopeIdRepository = repository;
+		registry.init();
+		return registry;
+	}
+
+	private static List<String> scopes(int from, int to) {
+		List<String> scopes = new ArrayList<>();
+		for (int i = from; i < to; i++) {
+			scopes.add("scope-" + i);
+		}
+		return scopes;
+	}
+}
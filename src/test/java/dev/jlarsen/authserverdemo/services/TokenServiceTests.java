@@ -0,0 +1,222 @@
+package dev.jlarsen.authserverdemo.services;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSObject;
+import com.nimbusds.jose.crypto.Ed25519Signer;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.OctetKeyPair;
+import com.nimbusds.jose.jwk.gen.OctetKeyPairGenerator;
+import dev.jlarsen.authserverdemo.exceptions.TokenException;
+import dev.jlarsen.authserverdemo.exceptions.TokenRequestError;
+import dev.jlarsen.authserverdemo.models.AuthClient;
+import dev.jlarsen.authserverdemo.models.CodeRequest;
+import dev.jlarsen.authserverdemo.models.RefreshTokenRecord;
+import dev.jlarsen.authserverdemo.models.TokenRequest;
+import dev.jlarsen.authserverdemo.models.VerifiedToken;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.test.context.ActiveProfiles;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Code exchange with self-signed (jws) codes, and token revocation, against the sample client and user
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.NONE, properties = {
+		"spring.datasource.url=jdbc:h2:mem:token_service_tests;DB_CLOSE_DELAY=-1",
+		"codes.format=jws"})
+@ActiveProfiles("h2")
+class TokenServiceTests {
+
+	static final String CLIENT_ID = "test-client";
+	static final String USER_EMAIL = "test@email.com";
+	static final String REDIRECT_URI = "http://localhost:8080/login/oauth2/code/auth-client";
+
+	@Autowired
+	AuthService authService;
+
+	@Autowired
+	TokenService tokenService;
+
+	@Autowired
+	VerifiedTokenCache verifiedTokenCache;
+
+	@Autowired
+	RevokedTokenStore revokedTokenStore;
+
+	@Autowired
+	AuthClientRegistry authClientRegistry;
+
+	@Test
+	void signedCodeIsExchanged() {
+		String code = authService.getAuthCode(codeRequest(), user());
+
+		tokenService.verifyClientTokenRequest(client(CLIENT_ID), tokenRequest(code));
+	}
+
+	@Test
+	void bareCodeIdIsRejectedInJwsMode() throws Exception {
+		String code = authService.getAuthCode(codeRequest(), user());
+		// the code_id can be read from the (unencrypted) payload by anyone holding the code
+		String codeId = (String) JWSObject.parse(code).getPayload().toJSONObject().get("code_id");
+
+		TokenException e = assertThrows(TokenException.class, () ->
+				tokenService.verifyClientTokenRequest(client(CLIENT_ID), tokenRequest(codeId)));
+		assertEquals(TokenRequestError.INVALID_GRANT, e.getError());
+
+		// and the attempt didn't use up the real code
+		tokenService.verifyClientTokenRequest(client(CLIENT_ID), tokenRequest(code));
+	}
+
+	@Test
+	void codeSignedWithAnotherAlgorithmIsRejected() throws Exception {
+		JWSObject code = JWSObject.parse(authService.getAuthCode(codeRequest(), user()));
+		// same kid (our ES256 key) and payload, but the header asks for EdDSA, signed by a key of the sender's
+		OctetKeyPair edKey = new OctetKeyPairGenerator(Curve.Ed25519).generate();
+		JWSObject forged = new JWSObject(new JWSHeader.Builder(JWSAlgorithm.EdDSA)
+				.keyID(code.getHeader().getKeyID()).build(), code.getPayload());
+		forged.sign(new Ed25519Signer(edKey));
+
+		assertInvalidGrant(() -> tokenService.verifyClientTokenRequest(client(CLIENT_ID),
+				tokenRequest(forged.serialize())));
+
+		// and the real code is still there
+		tokenService.verifyClientTokenRequest(client(CLIENT_ID), tokenRequest(code.serialize()));
+	}
+
+	@Test
+	void revokedAccessTokenIsRejected() {
+		String token = tokenService.createNewAccessToken(CLIENT_ID, USER_EMAIL);
+		assertEquals(USER_EMAIL, tokenService.verifyToken(token).getPrincipal().getEmail());
+
+		tokenService.revokeToken(client(CLIENT_ID), token, "access_token");
+
+		assertInvalidGrant(() -> tokenService.verifyToken(token));
+	}
+
+	@Test
+	void revokedAccessTokenIsRejectedWhenCached() {
+		verifiedTokenCache.enabled = true;
+		try {
+			String token = tokenService.createNewAccessToken(CLIENT_ID, USER_EMAIL);
+			tokenService.verifyToken(token);
+			long hits = verifiedTokenCache.getHits();
+			tokenService.verifyToken(token);
+			assertEquals(hits + 1, verifiedTokenCache.getHits());
+
+			tokenService.revokeToken(client(CLIENT_ID), token, null);
+			assertInvalidGrant(() -> tokenService.verifyToken(token));
+
+			// revoked on another node, where our cache entry isn't removed along with it
+			String other = tokenService.createNewAccessToken(CLIENT_ID, USER_EMAIL);
+			VerifiedToken verified = tokenService.verifyToken(other);
+			revokedTokenStore.revoke(verified.getJti(), verified.getExpiresAt().getEpochSecond());
+			assertInvalidGrant(() -> tokenService.verifyToken(other));
+		} finally {
+			verifiedTokenCache.enabled = false;
+		}
+	}
+
+	@Test
+	void revokingAnotherClientsAccessTokenDoesNothing() {
+		String token = tokenService.createNewAccessToken(CLIENT_ID, USER_EMAIL);
+
+		tokenService.revokeToken(client("other-client"), token, "access_token");
+
+		assertEquals(USER_EMAIL, tokenService.verifyToken(token).getPrincipal().getEmail());
+	}
+
+	@Test
+	void revokedRefreshTokenFamilyCantRefresh() {
+		String first = (String) tokenService.createTokenResponse(CLIENT_ID, USER_EMAIL, null).get("refresh_token");
+		RefreshTokenRecord record = tokenService.verifyRefreshToken(first, client(CLIENT_ID));
+		String second = (String) tokenService.createTokenResponse(CLIENT_ID, USER_EMAIL, record.getFamilyId())
+				.get("refresh_token");
+		String third = (String) tokenService.createTokenResponse(CLIENT_ID, USER_EMAIL, record.getFamilyId())
+				.get("refresh_token");
+
+		tokenService.revokeToken(client(CLIENT_ID), second, "refresh_token");
+
+		assertInvalidGrant(() -> tokenService.verifyRefreshToken(second, client(CLIENT_ID)));
+		// the rest of the family goes with it
+		assertInvalidGrant(() -> tokenService.verifyRefreshToken(third, client(CLIENT_ID)));
+	}
+
+	@Test
+	void revokingAnotherClientsRefreshTokenDoesNothing() {
+		String refreshToken = (String) tokenService.createTokenResponse(CLIENT_ID, USER_EMAIL, null)
+				.get("refresh_token");
+
+		tokenService.revokeToken(client("other-client"), refreshToken, "refresh_token");
+
+		assertEquals(CLIENT_ID, tokenService.verifyRefreshToken(refreshToken, client(CLIENT_ID)).getClientId());
+	}
+
+	@Test
+	void refreshingAnotherClientsRefreshTokenDoesNothing() {
+		String refreshToken = (String) tokenService.createTokenResponse(CLIENT_ID, USER_EMAIL, null)
+				.get("refresh_token");
+
+		assertInvalidGrant(() -> tokenService.verifyRefreshToken(refreshToken, client("other-client")));
+
+		// not used up, and its family wasn't revoked
+		RefreshTokenRecord record = tokenService.verifyRefreshToken(refreshToken, client(CLIENT_ID));
+		String next = (String) tokenService.createTokenResponse(CLIENT_ID, USER_EMAIL, record.getFamilyId())
+				.get("refresh_token");
+		assertEquals(CLIENT_ID, tokenService.verifyRefreshToken(next, client(CLIENT_ID)).getClientId());
+	}
+
+	@Test
+	void clientWithoutScopeGetsTokenWithoutScope() {
+		authClientRegistry.save(new AuthClient("no-scope-client", null, null, REDIRECT_URI, null, null,
+				new ArrayList<>(Collections.singletonList("client_credentials")), "no scope", null));
+		try {
+			Map<String, Object> response = tokenService.createClientCredentialsResponse(client("no-scope-client"),
+					null);
+			assertEquals("", response.get("scope"));
+			assertNotNull(response.get("access_token"));
+
+			TokenException e = assertThrows(TokenException.class, () ->
+					tokenService.createClientCredentialsResponse(client("no-scope-client"), "read:transactions"));
+			assertEquals(TokenRequestError.INVALID_SCOPE, e.getError());
+		} finally {
+			authClientRegistry.delete("no-scope-client");
+		}
+	}
+
+	private static void assertInvalidGrant(Runnable runnable) {
+		TokenException e = assertThrows(TokenException.class, runnable::run);
+		assertEquals(TokenRequestError.INVALID_GRANT, e.getError());
+	}
+
+	static CodeRequest codeRequest() {
+		return new CodeRequest("code", CLIENT_ID, "read:transactions", "state", REDIRECT_URI);
+	}
+
+	static TokenRequest tokenRequest(String code) {
+		TokenRequest tokenRequest = new TokenRequest();
+		tokenRequest.setGrantType("authorization_code");
+		tokenRequest.setRedirectUri(REDIRECT_URI);
+		tokenRequest.setCode(code);
+		return tokenRequest;
+	}
+
+	static Authentication client(String clientId) {
+		return new UsernamePasswordAuthenticationToken(clientId, null,
+				Collections.singletonList(new SimpleGrantedAuthority("ROLE_CLIENT")));
+	}
+
+	static Authentication user() {
+		return new UsernamePasswordAuthenticationToken(USER_EMAIL, null,
+				Collections.singletonList(new SimpleGrantedAuthority("ROLE_USER")));
+	}
+}